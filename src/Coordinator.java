@@ -6,17 +6,48 @@
  * all of the members of the pool.
  */
 
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class Coordinator {
 
@@ -24,16 +55,147 @@ public class Coordinator {
     private int port;
     private int threshold;
 
+    // Payloads at least this many bytes are deflated, 0 disables compression
+    private int compressionThreshold;
+
+    // Keep queued messages in compressed form only, trading CPU on replay for heap
+    private boolean compressPending;
+
+    // Both ends send a heartbeat when a link has been quiet this long, in milliseconds, and
+    // give up on a link that stays silent, or a write that stays stuck, for idleTimeout
+    private int heartbeatInterval = 5 * 1000;
+    private int idleTimeout = 15 * 1000;
+
+    // Publish rate limit for participants without one of their own, in messages per second
+    // with a burst allowance. A rate of 0 leaves them unlimited.
+    private double rateLimit;
+    private double rateBurst;
+    private Hashtable<Integer, TokenBucket> rateLimits = new Hashtable<>();
+
+    // Whether participants acknowledge deliveries, so unacknowledged ones are sent again
+    // until they are, rather than only on reconnect
+    private boolean atLeastOnce;
+    private AtomicLong acksReceived = new AtomicLong();
+    private AtomicLong retransmitted = new AtomicLong();
+
+    // Share of fan-out work each publisher gets when several are busy, default 1
+    private Hashtable<Integer, Integer> weights = new Hashtable<>();
+
+    // Bytes of queued messages kept in memory, across all members and for any one member.
+    // Past either mark a member's oldest queued messages spill to disk. 0 disables a mark.
+    // The global count also includes sent messages retained until confirmed.
+    private long pendingMemoryLimit = 64L * 1024 * 1024;
+    private long pendingMemberLimit = 8L * 1024 * 1024;
+    private AtomicLong pendingMemory = new AtomicLong();
+    private AtomicLong spilledMessages = new AtomicLong();
+    private AtomicInteger spillFiles = new AtomicInteger();
+    private File spillDirectory;
+
+
+    // Recent multicasts kept for members that ask for them on register, at most historySize
+    // of them and none older than historyAge milliseconds, which is capped by the threshold
+    private int historySize = 1024;
+    private int historyAge;
+    private HistoryRing history;
+
 	private Hashtable<Integer, PStub> members;
-	private Hashtable<Integer, Queue<Message>> pendingMessages;
+	private Hashtable<Integer, PendingQueue> pendingMessages;
+
+	// Which members want which messages, guarded by membersMutex
+	private SubscriptionIndex subscriptions = new SubscriptionIndex();
 
 	private final Object membersMutex = new Object();
-    private final Object pendingMutex = new Object();
+
+    private StateStore stateStore;
+    private ReplayScheduler replayScheduler = new ReplayScheduler();
+    private FanOutThread fanOutThread = new FanOutThread();
+
+    // Workers that write to members, each owning the members whose id maps to it
+    private int fanOutThreads = Runtime.getRuntime().availableProcessors();
+    private ShardWorker[] shards;
+    private Compression compression = new Compression();
 
     private static final int SUCCESS = 0;
     private static final int ERROR = -1;
     private static final int QUIT = -2;
 
+    // Response to an msend refused because the publisher is over its rate limit
+    private static final int RATE_LIMITED = -3;
+
+    // Delivery frames that carry a deflated message, or a deflated batch of messages
+    private static final int DEFLATED = 1;
+    private static final int BATCH = 2;
+
+    // Delivery frame with no message, sent on quiet links
+    private static final int HEARTBEAT = 3;
+
+    // Message priorities, most urgent first. Queued messages are delivered in priority order.
+    private static final int PRIORITY_HIGH = 0;
+    private static final int PRIORITY_NORMAL = 1;
+    private static final int PRIORITY_BULK = 2;
+
+    // Messages taken from higher lanes in a row before a waiting lower lane gets a turn
+    private static final int STARVATION_LIMIT = 16;
+
+    // Rough heap cost of a queued message on top of its bytes
+    private static final int PENDING_OVERHEAD = 64;
+
+    // Delivery modes, told to participants when they connect
+    private static final int DELIVERY_AT_MOST_ONCE = 0;
+    private static final int DELIVERY_AT_LEAST_ONCE = 1;
+
+    // Codecs a participant can advertise on register and reconnect
+    private static final int CODEC_DEFLATE = 1;
+
+    // Link modes a participant picks when it connects. A multiplexed participant receives
+    // deliveries on its command connection, each write tagged as a response or a delivery.
+    private static final int LINK_SEPARATE = 0;
+    private static final int LINK_MULTIPLEXED = 1;
+    private static final int TAG_RESPONSE = 0;
+    private static final int TAG_DELIVERY = 1;
+
+    // Commands from participants, sent as an opcode ahead of their arguments
+    private static final int OP_REGISTER = 1;
+    private static final int OP_DEREGISTER = 2;
+    private static final int OP_DISCONNECT = 3;
+    private static final int OP_RECONNECT = 4;
+    private static final int OP_MSEND = 5;
+    private static final int OP_QUIT = 6;
+    private static final int OP_HEARTBEAT = 7;
+    private static final int OP_ACK = 8;
+
+    // Longest message an msend may carry, in UTF-8 bytes
+    private static final int MAX_MESSAGE_LENGTH = 65535;
+
+    // How often the membership snapshot is rewritten and the write-ahead log truncated
+    private static final long SNAPSHOT_INTERVAL = 30 * 1000;
+
+    // How often delivery statistics are printed
+    private static final long STATS_INTERVAL = 60 * 1000;
+
+    // Upper bound on the number of participants re-linked at the same time after a restart
+    private static final int RELINK_THREADS = 16;
+
+    // Backlogs replayed at the same time, and messages replayed before yielding to the next one
+    private static final int REPLAY_THREADS = 8;
+    private static final int REPLAY_BATCH = 64;
+
+    // Bytes of fan-out a publisher of weight 1 gets per scheduling round
+    private static final int FANOUT_QUANTUM = 4 * 1024;
+
+    // Messages a publisher may have waiting for fan-out, and fan-outs a shard may have waiting
+    // to be written. A full queue holds up the msend, or the fan-out thread, until it drains.
+    private static final int FANOUT_QUEUE_LIMIT = 1024;
+    private static final int SHARD_QUEUE_LIMIT = 1024;
+
+    // Written messages kept per participant until it confirms them on reconnect. With
+    // at-least-once delivery this is the in-flight window: a participant with this many
+    // unacknowledged messages gets new ones queued until it acknowledges.
+    private static final int UNCONFIRMED_LIMIT = 1024;
+
+    // Unacknowledged messages are sent again after this long, in milliseconds
+    private static final long ACK_TIMEOUT = 2 * 1000;
+
     public static void main (String args[]){
         if (args.length != 1) {
             System.out.println("Error : Expected single config file path argument.");
@@ -53,6 +215,22 @@ public class Coordinator {
         } catch (FileNotFoundException e) {
             System.out.println("Error : Config file not found");
         }
+
+        if (historyAge <= 0 || historyAge > threshold)
+            historyAge = threshold;
+        history = new HistoryRing(historySize);
+
+        // Queues are not persisted, so spill files from an earlier run are of no use
+        spillDirectory = new File("coordinator-" + port + ".spill");
+        File[] stale = spillDirectory.listFiles();
+        if (stale != null) {
+            for (File file : stale)
+                file.delete();
+        }
+
+        // Rebuild the membership from the last snapshot and write-ahead log, if any
+        stateStore = new StateStore("coordinator-" + port);
+        stateStore.restore();
 	}
 
     private void parseConfigFile(String fileName) throws FileNotFoundException {
@@ -64,11 +242,79 @@ public class Coordinator {
             threshold = Integer.parseInt(coordConfig.nextLine()) * 1000; // Convert to milliseconds
 
             // System.out.println("Threshold to save messages is " + threshold + " milliseconds.");
+
+            // Remaining lines are optional "name value" settings
+            while (coordConfig.hasNextLine()) {
+                String line = coordConfig.nextLine().trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                parseConfigOption(line.split("\\s+"));
+            }
         } catch (IOException e) {
             System.out.println("Error : Failed to parse config file.");
         }
     }
 
+    private void parseConfigOption(String[] option) {
+        try {
+            switch (option[0].toLowerCase()) {
+                case "compression":
+                    compressionThreshold = Integer.parseInt(option[1]);
+                    break;
+                case "compress_pending":
+                    compressPending = Boolean.parseBoolean(option[1]);
+                    break;
+                case "heartbeat":
+                    heartbeatInterval = Integer.parseInt(option[1]) * 1000;
+                    break;
+                case "idle_timeout":
+                    idleTimeout = Integer.parseInt(option[1]) * 1000;
+                    break;
+                case "rate_limit":
+                    // Either "<rate> <burst>" for everyone, or "<id> <rate> <burst>"
+                    if (option.length > 3) {
+                        rateLimits.put(Integer.parseInt(option[1]), new TokenBucket(
+                                Double.parseDouble(option[2]), Double.parseDouble(option[3])));
+                    } else {
+                        rateLimit = Double.parseDouble(option[1]);
+                        rateBurst = Double.parseDouble(option[2]);
+                    }
+                    break;
+                case "delivery":
+                    if (option[1].equalsIgnoreCase("at-least-once"))
+                        atLeastOnce = true;
+                    else if (option[1].equalsIgnoreCase("at-most-once"))
+                        atLeastOnce = false;
+                    else
+                        throw new NumberFormatException();
+                    break;
+                case "pending_memory":
+                    pendingMemoryLimit = Long.parseLong(option[1]);
+                    break;
+                case "pending_member_memory":
+                    pendingMemberLimit = Long.parseLong(option[1]);
+                    break;
+                case "history":
+                    // "<count>" or "<count> <seconds>"
+                    historySize = Math.max(0, Integer.parseInt(option[1]));
+                    if (option.length > 2)
+                        historyAge = Integer.parseInt(option[2]) * 1000;
+                    break;
+                case "fanout_threads":
+                    fanOutThreads = Math.max(1, Integer.parseInt(option[1]));
+                    break;
+                case "weight":
+                    weights.put(Integer.parseInt(option[1]), Math.max(1, Integer.parseInt(option[2])));
+                    break;
+                default:
+                    System.out.println("Error : Unrecognized config option \"" + option[0] + "\"");
+                    break;
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Error : Invalid value for config option \"" + option[0] + "\"");
+        }
+    }
+
 	/**
 	 * Creates a new ServerSocket and then listens for a new connection from a participant.
 	 */
@@ -81,6 +327,34 @@ public class Coordinator {
 
             coordinatorSock = new ServerSocket(port, 20);
 
+            // Re-establish delivery links to members that were online before a restart
+            relinkMembers();
+
+            SnapshotThread snapshotThread = new SnapshotThread();
+            snapshotThread.start();
+
+            if (compressionThreshold > 0 || atLeastOnce || pendingMemoryLimit > 0 || pendingMemberLimit > 0) {
+                StatsThread statsThread = new StatsThread();
+                statsThread.start();
+            }
+
+            if (atLeastOnce) {
+                RetransmitThread retransmitThread = new RetransmitThread();
+                retransmitThread.start();
+            }
+
+            shards = new ShardWorker[fanOutThreads];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new ShardWorker(i);
+                shards[i].start();
+            }
+            fanOutThread.start();
+
+            HeartbeatThread heartbeatThread = new HeartbeatThread();
+            heartbeatThread.start();
+            WatchdogThread watchdogThread = new WatchdogThread();
+            watchdogThread.start();
+
             // Listens for a new participant
 			listen();
 
@@ -117,6 +391,305 @@ public class Coordinator {
 		}
 	}
 
+    /**
+     * Opens the delivery links of every restored member that was online when the coordinator
+     * stopped. Links are opened in parallel on a bounded pool, so one unreachable participant
+     * does not hold up the rest of the group. Members stay offline, and have their messages
+     * queued, until their link is back.
+     */
+    private void relinkMembers() {
+        List<PStub> restored = new ArrayList<>();
+        synchronized (membersMutex) {
+            for (PStub participant : members.values()) {
+                if (participant.isOnline()) {
+                    participant.setOnline(false);
+
+                    // Multiplexed participants have no listening port, they reattach when
+                    // they dial back in
+                    if (participant.getRecieveingPort() != 0)
+                        restored.add(participant);
+                }
+            }
+        }
+
+        if (restored.isEmpty())
+            return;
+
+        System.out.println("Re-linking " + restored.size() + " restored participant(s)...");
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(restored.size(), RELINK_THREADS));
+        for (PStub participant : restored) {
+            pool.execute(() -> relink(participant));
+        }
+        pool.shutdown();
+    }
+
+    private void relink(PStub participant) {
+        if (!participant.connect())
+            return;
+
+        // A re-accepted link starts with the participant's durable cursor, which may be ahead
+        // of the one in our snapshot
+        long cursor;
+        try {
+            cursor = participant.readLong();
+        } catch (IOException e) {
+            participant.disconnect();
+            return;
+        }
+
+        synchronized (membersMutex) {
+            // Participant may have deregistered in the meantime
+            if (members.get(participant.getId()) != participant) {
+                participant.disconnect();
+                return;
+            }
+            stateStore.logOnline(participant);
+        }
+        stateStore.commit();
+
+        System.out.println("Re-linked participant " + participant.getId());
+        participant.resumeFrom(cursor);
+        replayScheduler.schedule(participant);
+    }
+
+    /**
+     * Takes a participant whose delivery link broke offline, so its messages are queued
+     * until it reconnects instead of failing delivery to the rest of the group. Only if the
+     * link is still the given generation, taken before the write that failed, since a
+     * reconnect may have replaced it in the meantime and the new link is not ours to fail.
+     */
+    private void linkFailed(PStub participant, int generation) {
+        if (participant.disconnect(generation))
+            linkLost(participant, generation);
+    }
+
+    private void linkLost(PStub participant, int generation) {
+        synchronized (membersMutex) {
+            synchronized (participant.pendingMutex) {
+                // A newer link keeps the member online, its replay decides when
+                if (participant.getLinkGeneration() != generation)
+                    return;
+                participant.setOnline(false);
+            }
+            if (members.get(participant.getId()) == participant)
+                stateStore.logOffline(participant);
+        }
+        stateStore.commit();
+        System.out.println("Error : Lost delivery link to participant " + participant.getId());
+    }
+
+    /**
+     * Hands a message to the shard workers of every member whose filters it matches.
+     * membersMutex is only held to pick the recipients, the writes happen on the shards.
+     * Runs on the fan-out thread, and waits while a shard's queue is full.
+     */
+    private void multicast(Message msg) throws InterruptedException {
+        List<List<PStub>> partitions = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++)
+            partitions.add(null);
+
+        synchronized (membersMutex) {
+            history.add(msg);
+            for (Integer id : subscriptions.match(msg)) {
+                PStub participant = members.get(id);
+                if (participant == null)
+                    continue;
+
+                int shard = Math.floorMod(id, shards.length);
+                if (partitions.get(shard) == null)
+                    partitions.set(shard, new ArrayList<>());
+                partitions.get(shard).add(participant);
+            }
+        }
+
+        for (int i = 0; i < shards.length; i++) {
+            if (partitions.get(i) != null)
+                shards[i].submit(new FanOut(msg, partitions.get(i)));
+        }
+    }
+
+    /**
+     * Writes a message to online members and queues it for the rest. Runs on the shard
+     * worker that owns the members, and each write still takes the member's monitor, which
+     * it shares with replay, retransmit and heartbeat writes to the same member.
+     */
+    private void deliver(Message msg, List<PStub> participants) {
+        boolean queued = false;
+
+        for (PStub participant : participants) {
+            // Decide under the member's pendingMutex so a replay cannot finish in between
+            boolean online;
+            synchronized (participant.pendingMutex) {
+                online = participant.isOnline();
+
+                // Window full, hold messages back until it acknowledges
+                if (online && atLeastOnce && participant.windowFull()) {
+                    participant.setOnline(false);
+                    participant.setPaused(true);
+                    online = false;
+                }
+                if (!online)
+                    queued |= queue(participant, msg);
+            }
+
+            if (online) {
+                int generation = participant.getLinkGeneration();
+                try {
+                    sendParticipantMessage(participant, msg);
+                } catch (IOException e) {
+                    // Keep the message for when the participant reconnects
+                    linkFailed(participant, generation);
+                    synchronized (participant.pendingMutex) {
+                        queued |= queue(participant, msg);
+                    }
+                }
+            }
+        }
+
+        if (queued && compressPending)
+            msg.compact();
+    }
+
+    /**
+     * Adds a message to a member's pending queue. Caller holds the member's pendingMutex.
+     *
+     * @return false if the member left the group in the meantime
+     */
+    private boolean queue(PStub participant, Message msg) {
+        PendingQueue pending = pendingMessages.get(participant.getId());
+        if (pending == null)
+            return false;
+        pending.add(msg);
+        return true;
+    }
+
+    /**
+     * @return the publish rate limiter for a participant, created from the default limit on
+     * first use
+     */
+    private TokenBucket rateLimiter(int participantId) {
+        synchronized (rateLimits) {
+            TokenBucket bucket = rateLimits.get(participantId);
+            if (bucket == null) {
+                bucket = new TokenBucket(rateLimit, rateBurst);
+                rateLimits.put(participantId, bucket);
+            }
+            return bucket;
+        }
+    }
+
+    private void sendParticipantMessage(PStub participant, Message message) throws IOException {
+        if (participant == null)
+            return;
+        synchronized (participant) {
+            writeMessage(participant, participant.getDeliveredSequence() + 1, message);
+            participant.flush();
+            participant.sent(participant.nextSequence(), message, threshold);
+        }
+    }
+
+    /**
+     * Sends messages under consecutive new delivery sequence numbers. Numbers are only used up
+     * once the write succeeds, so a retry after a failed write reuses them and the participant
+     * can discard whatever part of the failed write it did receive.
+     */
+    private void sendParticipantBatch(PStub participant, List<Message> batch) throws IOException {
+        synchronized (participant) {
+            long first = participant.getDeliveredSequence() + 1;
+            writeBatch(participant, first, batch);
+            participant.flush();
+            for (Message message : batch)
+                participant.sent(participant.nextSequence(), message, threshold);
+        }
+    }
+
+    /**
+     * Sends again messages the participant had not durably received when its link dropped,
+     * under their original delivery sequence numbers so it can discard any it already has.
+     * Acknowledged deliveries leave gaps in those numbers, and a batch frame only carries
+     * its first one, so each run of consecutive numbers is written as a batch of its own.
+     */
+    private void resendParticipantMessages(PStub participant, List<Delivery> deliveries) throws IOException {
+        synchronized (participant) {
+            int start = 0;
+            while (start < deliveries.size()) {
+                long first = deliveries.get(start).getSequence();
+                List<Message> batch = new ArrayList<>();
+                int end = start;
+                while (end < deliveries.size() && deliveries.get(end).getSequence() == first + (end - start))
+                    batch.add(deliveries.get(end++).getMessage());
+
+                // A multiplexed link tags what is flushed as one delivery
+                if (start > 0 && participant.isMultiplexed())
+                    participant.flush();
+                writeBatch(participant, first, batch);
+                start = end;
+            }
+            participant.flush();
+            for (Delivery delivery : deliveries)
+                participant.sent(delivery.getSequence(), delivery.getMessage(), threshold);
+        }
+    }
+
+    /**
+     * Writes a single message frame, using the copy compressed when the message was created
+     * if the participant negotiated compression. Caller must hold the participant's lock and
+     * flush once done.
+     */
+    private void writeMessage(PStub participant, long sequence, Message message) throws IOException {
+        byte[] compressed = message.getCompressed();
+        if (compressed != null && participant.acceptsCompression()) {
+            participant.writeInt(DEFLATED);
+            participant.writeLong(sequence);
+            participant.writeInt(message.getLength());
+            participant.writeBytes(compressed);
+            compression.sent(message.getLength(), compressed.length);
+        } else {
+            byte[] payload = message.getPayload();
+            participant.writeInt(SUCCESS);
+            participant.writeLong(sequence);
+            participant.writeBytes(payload);
+            compression.sent(payload.length, payload.length);
+        }
+    }
+
+    /**
+     * Writes messages with consecutive sequence numbers as one deflated batch frame, which
+     * compresses far better than the messages do one at a time. Falls back to single frames
+     * for participants without compression, or when the batch does not shrink. Caller must
+     * hold the participant's lock and flush once done.
+     */
+    private void writeBatch(PStub participant, long first, List<Message> batch) throws IOException {
+        if (batch.size() > 1 && participant.acceptsCompression()) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream frames = new DataOutputStream(buffer);
+            for (Message message : batch) {
+                frames.writeInt(message.getLength());
+                frames.write(message.getPayload());
+            }
+
+            byte[] raw = buffer.toByteArray();
+            byte[] compressed = compression.deflate(raw);
+            if (compressed.length < raw.length) {
+                participant.writeInt(BATCH);
+                participant.writeLong(first);
+                participant.writeInt(batch.size());
+                participant.writeInt(raw.length);
+                participant.writeBytes(compressed);
+                compression.sent(raw.length, compressed.length);
+                return;
+            }
+        }
+
+        // A multiplexed link tags what is flushed as one delivery, so flush each frame
+        long sequence = first;
+        for (Message message : batch) {
+            writeMessage(participant, sequence++, message);
+            if (participant.isMultiplexed() && sequence < first + batch.size())
+                participant.flush();
+        }
+    }
+
     public class CoordinatorThread extends Thread {
 
         private Socket clientSock;
@@ -125,6 +698,14 @@ public class Coordinator {
         private int timeout;
 
         private int participantId;
+        private boolean multiplexed;
+
+        // Generation of the delivery link this connection last opened, -1 for none
+        private int linked = -1;
+
+        // Looked up once rather than on every msend
+        private Integer memberKey;
+        private TokenBucket limiter;
 
         CoordinatorThread(Socket clientSock, int timeout) {
             this.clientSock = clientSock;
@@ -133,13 +714,23 @@ public class Coordinator {
             try {
 
                 // the outgoing message buffer from coordinator to participant
-                out = new DataOutputStream(clientSock.getOutputStream());
+                out = new DataOutputStream(new BufferedOutputStream(clientSock.getOutputStream()));
 
                 // the incoming message buffer from participant to be read by coordinator
-                in = new DataInputStream(clientSock.getInputStream());
+                in = new DataInputStream(new BufferedInputStream(clientSock.getInputStream()));
 
                 participantId = in.readInt();
-                System.out.println("Connected with participant " + participantId);
+                memberKey = participantId;
+                multiplexed = in.readInt() == LINK_MULTIPLEXED;
+                System.out.println("Connected with participant " + participantId
+                        + (multiplexed ? " (multiplexed)" : ""));
+
+                // Participant heartbeats at our interval, so silence past the timeout means
+                // it is gone
+                out.writeInt(heartbeatInterval);
+                out.writeInt(atLeastOnce ? DELIVERY_AT_LEAST_ONCE : DELIVERY_AT_MOST_ONCE);
+                out.flush();
+                clientSock.setSoTimeout(idleTimeout);
 
             } catch (IOException e) {
                 e.printStackTrace();
@@ -148,45 +739,61 @@ public class Coordinator {
 
         @Override
         public void run() {
-            String input;
             boolean running = true;
 
             while (running) {
                 try {
-                    // Read command from the participant
-                    // System.out.println("Waiting for user input...");
-                    input = in.readUTF();
-
-                    System.out.println("Participant " + participantId + " >> " + input);
-
-                    switch (input) {
-                        case "register":
+                    // Read command from the participant. Heartbeats, acknowledgements and
+                    // msends are the steady traffic and are not logged.
+                    int command = in.readInt();
+                    switch (command) {
+                        case OP_HEARTBEAT:
+                            if (multiplexed)
+                                heartbeat();
+                            break;
+                        case OP_ACK:
+                            acknowledge();
+                            break;
+                        case OP_MSEND:
+                            msend();
+                            break;
+                        case OP_REGISTER:
+                            logCommand("register");
                             register();
                             break;
-                        case "deregister":
+                        case OP_DEREGISTER:
+                            logCommand("deregister");
                             deregister();
                             break;
-                        case "disconnect":
+                        case OP_DISCONNECT:
+                            logCommand("disconnect");
                             disconnect();
                             break;
-                        case "reconnect":
+                        case OP_RECONNECT:
+                            logCommand("reconnect");
                             reconnect();
                             break;
-                        case "msend":
-                            msend();
-                            break;
-                        case "exit":
-                        case "quit":
+                        case OP_QUIT:
+                            logCommand("quit");
                             running = false;
                             quit();
                             break;
                         default:
-                            System.out.println("Error : Unrecognized Command");
+                            // Nothing tells where its arguments end, so the stream is lost
+                            System.out.println("Error : Unrecognized Command " + command);
+                            running = false;
+                            connectionLost();
                             break;
                     }
 
+                } catch (SocketTimeoutException e) {
+                    System.out.println("Error : Participant " + participantId + " went silent.");
+                    running = false;
+                    connectionLost();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    System.out.println("Error : Lost connection to participant " + participantId);
+                    running = false;
+                    connectionLost();
                 }
             }
 
@@ -199,6 +806,66 @@ public class Coordinator {
             }
         }
 
+        private void logCommand(String command) {
+            System.out.println("Participant " + participantId + " >> " + command);
+        }
+
+        /**
+         * Takes the participant offline when its command connection dies without a quit,
+         * so messages are queued for it instead of written to a dead peer. It is still a
+         * member and picks its messages up on reconnect.
+         */
+        private void connectionLost() {
+            PStub participant;
+            synchronized (membersMutex) {
+                participant = members.get(participantId);
+            }
+            // A re-dial may have replaced the link since, and the new one is not ours to fail.
+            // A member being replayed or paused is offline but still has the link to close.
+            if (participant != null && participant.isConnected())
+                linkFailed(participant, linked);
+        }
+
+        /**
+         * Answers the participant's current command. Deliveries may share the connection, so
+         * the answer is written whole under the stream's lock, and tagged when multiplexed.
+         */
+        private void respond(int code) throws IOException {
+            synchronized (out) {
+                if (multiplexed)
+                    out.writeInt(TAG_RESPONSE);
+                out.writeInt(code);
+                out.flush();
+            }
+        }
+
+        /**
+         * Answers a heartbeat on a multiplexed connection, which the participant reads with a
+         * timeout. The heartbeat thread only covers connected members, not a participant that
+         * has yet to register or has disconnected, so without this it would time out and
+         * re-dial.
+         */
+        private void heartbeat() throws IOException {
+            synchronized (out) {
+                out.writeInt(TAG_DELIVERY);
+                out.writeInt(HEARTBEAT);
+                out.flush();
+            }
+        }
+
+        /**
+         * Opens a delivery link for the participant: a connection to its listener, or a
+         * share of this connection when multiplexed.
+         */
+        private boolean link(PStub participant) {
+            if (multiplexed)
+                participant.attach(clientSock, out);
+            else if (!participant.connect())
+                return false;
+            linked = participant.getLinkGeneration();
+            return true;
+        }
+
         /**
          * Registers the new participant with the coordinatorThread. Places the id of the
          * participant into a data structure that the coordinator references to determine
@@ -212,21 +879,73 @@ public class Coordinator {
 
             String ip = in.readUTF();
             int port = in.readInt();
+            int codecs = in.readInt();
+            List<String> filters = readFilters();
+
+            // Catch up on the last count messages, or those since a time, 0 for neither
+            int replayCount = in.readInt();
+            long replaySince = in.readLong();
 
             // Create a new participant
-            PStub participant = new PStub(participantId, ip, port, true);
+            PStub participant = new PStub(participantId, ip, port, true, 0);
+            participant.setFilters(filters == null ? new ArrayList<>() : filters);
+            if (!link(participant))
+                participant.setOnline(false);
+            participant.setCompression(compressionThreshold > 0 && (codecs & CODEC_DEFLATE) != 0);
 
             status = in.readInt();
 
             // Add new participant to the group.
             if (status == SUCCESS) {
+                // Queue first, so a fan-out can always find it once the member is in the group
+                PendingQueue previous = pendingMessages.put(participantId, new PendingQueue(participantId));
+                if (previous != null)
+                    previous.discard();
+                boolean replay = false;
+                PStub replaced;
                 synchronized (membersMutex) {
-                    members.put(participantId, participant);
-                }
-                synchronized (pendingMutex) {
-                    pendingMessages.put(participantId, new LinkedList<>());
+                    replaced = members.put(participantId, participant);
+                    stateStore.logRegister(participant);
+                    if (!participant.getFilters().isEmpty())
+                        stateStore.logFilters(participant);
+                    subscriptions.subscribe(participantId, participant.getFilters());
+
+                    // Still under membersMutex, so every message is either in the history
+                    // taken here or fanned out to the member afterwards
+                    if (replayCount > 0 || replaySince > 0)
+                        replay = queueHistory(participant, replayCount, replaySince);
                 }
+                stateStore.commit();
+
+                if (replaced != null)
+                    replaced.discardWindow();
+
+                // The replay puts it online once it has caught up
+                if (replay && participant.isConnected())
+                    replayScheduler.schedule(participant);
+            }
+        }
+
+        /**
+         * Queues the history a new member asked for ahead of anything fanned out to it, and
+         * takes it offline until the replay has delivered it. Caller holds membersMutex.
+         *
+         * @return false if there was nothing to replay
+         */
+        private boolean queueHistory(PStub participant, int count, long since) {
+            List<Message> backlog = history.select(participantId, count, since);
+            if (backlog.isEmpty())
+                return false;
+
+            synchronized (participant.pendingMutex) {
+                participant.setOnline(false);
+                PendingQueue pending = pendingMessages.get(participantId);
+                for (Message message : backlog)
+                    pending.add(message);
             }
+            System.out.println("Replaying " + backlog.size() + " message(s) of history to participant "
+                    + participantId);
+            return true;
         }
 
         /**
@@ -240,14 +959,22 @@ public class Coordinator {
             if (status != SUCCESS)
                 return;
 
+            PStub participant;
             synchronized (membersMutex) {
-                quitParticipantListener(members.get(participantId));
-                members.remove(participantId);
+                participant = members.remove(participantId);
+                subscriptions.unsubscribe(participantId);
+                stateStore.logDeregister(participantId);
             }
+            stateStore.commit();
 
-            synchronized (pendingMutex) {
-                pendingMessages.remove(participantId);
-            }
+            // Removing the queue also stops any replay still running for this participant
+
+            PendingQueue pending = pendingMessages.remove(participantId);
+            if (pending != null)
+                pending.discard();
+
+            if (participant != null)
+                quitParticipantListener(participant, participant.isOnline());
         }
 
         /**
@@ -260,11 +987,20 @@ public class Coordinator {
             if (status != SUCCESS)
                 return;
 
+            PStub participant;
+            boolean online;
             synchronized (membersMutex) {
-                PStub participant = members.get(participantId);
-                quitParticipantListener(participant);
-                participant.setOnline(false);
+                participant = members.get(participantId);
+                if (participant == null)
+                    return;
+                synchronized (participant.pendingMutex) {
+                    online = participant.isOnline();
+                    participant.setOnline(false);
+                }
+                stateStore.logOffline(participant);
             }
+            stateStore.commit();
+            quitParticipantListener(participant, online);
         }
 
         /**
@@ -279,35 +1015,97 @@ public class Coordinator {
                 return;
 
             int port = in.readInt();
+            int codecs = in.readInt();
+            long cursor = in.readLong();
+            List<String> filters = readFilters();
 
             PStub participant;
             synchronized (membersMutex) {
                 participant = members.get(participantId);
                 if (participant == null) {
                     System.out.println("Error : Participant was not registered.");
-                    out.writeInt(ERROR);
+                    respond(ERROR);
                     return;
                 } else {
-                    out.writeInt(SUCCESS);
-                    participant.setOnline(true);
+                    respond(SUCCESS);
+                    participant.disconnect();
+                    synchronized (participant.pendingMutex) {
+                        participant.setOnline(false);
+                        participant.setPaused(false);
+                    }
                     participant.setRecieveingPort(port);
-                    participant.connect();
+                    participant.setCompression(compressionThreshold > 0 && (codecs & CODEC_DEFLATE) != 0);
+
+                    // Messages already queued stay queued, the new filters apply from now on
+                    if (filters != null) {
+                        participant.setFilters(filters);
+                        stateStore.logFilters(participant);
+                        subscriptions.subscribe(participantId, filters);
+                    }
                 }
             }
+            stateStore.commit();
 
-            synchronized (pendingMutex) {
-                Queue<Message> received = pendingMessages.get(participantId);
-                if (received != null) {
-                    while (received.size() > 0) {
-                        Message message = received.peek();
-                        long elapsed = System.currentTimeMillis() - message.getTimestamp();
-                        if (elapsed < timeout) {
-                            sendParticipantMessage(participant, message.getMessage());
-                        }
-                        received.remove();
-                    }
+            // Open the link outside the lock so a slow participant does not stall the group
+            if (!link(participant))
+                return;
+
+            synchronized (membersMutex) {
+                stateStore.logOnline(participant);
+            }
+            stateStore.commit();
+
+            // Participant stays offline, with new messages queued behind its backlog, until
+            // the scheduler has caught it up. Anything it lost in flight goes first.
+            participant.resumeFrom(cursor);
+            replayScheduler.schedule(participant);
+        }
+
+        /**
+         * Reads the filters sent with register and reconnect.
+         *
+         * @return the filters, or null if the participant wants to keep its current ones
+         */
+        private List<String> readFilters() throws IOException {
+            int count = in.readInt();
+            if (count < 0)
+                return null;
+
+            List<String> filters = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                filters.add(in.readUTF());
+            return filters;
+        }
+
+        /**
+         * Takes a cumulative acknowledgement: the participant has durably received every
+         * delivery up to the sequence number. Resumes delivery to a participant whose window
+         * had filled up. No response is sent.
+         */
+        private void acknowledge() throws IOException {
+            long sequence = in.readLong();
+
+            PStub participant;
+            synchronized (membersMutex) {
+                participant = members.get(participantId);
+            }
+            if (participant == null)
+                return;
+
+            acksReceived.incrementAndGet();
+            participant.acknowledge(sequence);
+
+            boolean resume = false;
+            synchronized (participant.pendingMutex) {
+                if (participant.isPaused() && !participant.windowFull() && participant.isConnected()) {
+                    participant.setPaused(false);
+                    resume = true;
                 }
             }
+
+            // Queued messages go out through the replay, which puts it back online
+            if (resume)
+                replayScheduler.schedule(participant);
         }
 
         /**
@@ -321,184 +1119,2379 @@ public class Coordinator {
 
             // Check if ID is registered
             synchronized (membersMutex) {
-                if (members.get(participantId) == null) {
-                    out.writeInt(ERROR);
+                if (members.get(memberKey) == null) {
+                    respond(ERROR);
                     return;
-                } else
-                    out.writeInt(SUCCESS);
-            }
-
-            String message = in.readUTF();
-
-            synchronized (membersMutex) {
-                PStub participant;
-                for (Integer id : members.keySet()) {
-                    participant = members.get(id);
-                    if (participant.isOnline()) {
-                        sendParticipantMessage(participant, message);
-                    } else {
-                        synchronized (pendingMutex) {
-                            Message msg = new Message(message);
-                            pendingMessages.get(participant.getId()).add(msg);
-                        }
-                    }
                 }
             }
+            if (limiter == null)
+                limiter = rateLimiter(participantId);
+            if (!limiter.tryAcquire()) {
+                respond(RATE_LIMITED);
+                return;
+            }
+            respond(SUCCESS);
+
+            // Read straight into the array the message keeps, with no String in between
+            int length = in.readInt();
+            if (length < 0 || length > MAX_MESSAGE_LENGTH)
+                throw new IOException("Invalid message length " + length);
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            int priority = in.readInt();
+            if (priority < PRIORITY_HIGH || priority > PRIORITY_BULK)
+                priority = PRIORITY_NORMAL;
+
+            // Headers are only matched against filters, members receive the text alone
+            Map<String, String> headers = null;
+            int headerCount = in.readInt();
+            for (int i = 0; i < headerCount; i++) {
+                if (headers == null)
+                    headers = new HashMap<>();
+                headers.put(in.readUTF(), in.readUTF());
+            }
 
-            out.writeInt(SUCCESS);
-        }
-
-        private void quitParticipantListener(PStub participant) throws IOException {
-            if (participant == null)
+            // Encoded and compressed once here, then shared by every member. The fan-out
+            // thread delivers it in this publisher's turn; the reply only confirms it is queued.
+            // Waits while this publisher's fan-out queue is full
+            try {
+                fanOutThread.submit(participantId, new Message(payload, priority, headers));
+            } catch (InterruptedException e) {
+                respond(ERROR);
                 return;
-            participant.writeInt(QUIT);
+            }
+
+            respond(SUCCESS);
         }
 
-        private void sendParticipantMessage(PStub participant, String msg) throws IOException {
-            if (participant == null)
-                return;
-            participant.writeInt(SUCCESS);
-            participant.writeUTF(msg);
+        /**
+         * Tells the participant's listener to stop, if it was online, and closes the delivery
+         * link. Called outside membersMutex, since the write waits for any write already in
+         * progress to the participant.
+         */
+        private void quitParticipantListener(PStub participant, boolean online) throws IOException {
+            try {
+                if (online) {
+                    synchronized (participant) {
+                        participant.writeInt(QUIT);
+                        participant.flush();
+                    }
+                }
+            } finally {
+                participant.disconnect();
+                participant.discardWindow();
+            }
         }
 
         private void quit() throws IOException {
 
+            PStub participant;
             synchronized (membersMutex) {
-                quitParticipantListener(members.get(participantId));
-                members.remove(participantId);
+                participant = members.remove(participantId);
+                subscriptions.unsubscribe(participantId);
+                if (participant != null)
+                    stateStore.logDeregister(participantId);
             }
+            stateStore.commit();
 
-            synchronized (pendingMutex) {
-                pendingMessages.remove(participantId);
-            }
+            PendingQueue pending = pendingMessages.remove(participantId);
+            if (pending != null)
+                pending.discard();
+
+            if (participant != null)
+                quitParticipantListener(participant, participant.isOnline());
         }
     }
 
-    class PStub {
-
-	    private int id;
-	    private String ipAddress;
-	    private int receivingPort;
-	    private boolean online;
+    /**
+     * Replays the backlogs of reconnecting participants on a bounded pool of workers. Each
+     * participant's replay is an independent task that sends one batch and then goes to the
+     * back of the pool's queue, so a storm of reconnects is interleaved fairly and one large
+     * backlog cannot hold up the rest. The member's pendingMutex is only held while taking a
+     * batch off the queue, never while writing, so live msends keep flowing during a replay.
+     * Retransmits of unacknowledged deliveries run on the same workers.
+     */
+    class ReplayScheduler {
 
-	    private Socket partSocket;
-	    private DataInputStream in;
-        private DataOutputStream out;
+        private final ExecutorService workers = Executors.newFixedThreadPool(REPLAY_THREADS);
 
-        // private long timeSinceOnline;
+        /**
+         * Starts a replay of the participant's deliveries to resend and then its backlog. A
+         * replay still running for the participant stops at its next batch and leaves the
+         * rest to this one.
+         */
+        void schedule(PStub participant) {
+            int generation;
+            synchronized (participant.pendingMutex) {
+                generation = participant.startReplay();
+            }
+            workers.execute(new Replay(participant, generation));
+        }
 
-        PStub(int id, String ipAddress, int recievingPort, boolean online) {
-            this.id = id;
-            this.ipAddress = ipAddress;
-            this.receivingPort = recievingPort;
-            this.online = online;
-            connect();
+        /**
+         * Sends a participant's overdue deliveries again, once startRetransmit() claimed them.
+         */
+        void retransmit(PStub participant) {
+            workers.execute(new Retransmit(participant));
         }
 
-        public void setRecieveingPort(int port) {
-            receivingPort = port;
+        class Replay implements Runnable {
+
+            private PStub participant;
+            private int generation;
+            private long start;
+            private int replayed;
+
+            Replay(PStub participant, int generation) {
+                this.participant = participant;
+                this.generation = generation;
+                this.start = System.currentTimeMillis();
+            }
+
+            @Override
+            public void run() {
+                if (!isCurrent())
+                    return;
+
+                List<Delivery> resend = participant.takeResend(REPLAY_BATCH);
+                if (!resend.isEmpty()) {
+                    resend(resend);
+                    return;
+                }
+
+                List<Message> batch = new ArrayList<>(REPLAY_BATCH);
+
+                synchronized (participant.pendingMutex) {
+                    PendingQueue received = pendingMessages.get(participant.getId());
+
+                    // Deregistered, or superseded by a later replay, while waiting for its turn
+                    if (received == null || !participant.isReplaying(generation))
+                        return;
+
+                    // Window full, the participant's next acknowledgement resumes the replay
+                    if (atLeastOnce && participant.windowFull()) {
+                        participant.setPaused(true);
+                        return;
+                    }
+
+                    // Urgent messages come off the queue first, ahead of older bulk ones
+                    while (batch.size() < REPLAY_BATCH && !received.isEmpty())
+                        batch.add(received.poll());
+
+                    // Caught up. Going online under the lock hands delivery over to the
+                    // member's shard without losing or reordering anything.
+                    if (batch.isEmpty()) {
+                        if (!participant.isConnected())
+                            return;
+                        participant.setOnline(true);
+                        System.out.println("Participant " + participant.getId() + " caught up in "
+                                + (System.currentTimeMillis() - start) + " ms (" + replayed
+                                + " message(s) replayed)");
+                        return;
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                batch.removeIf(message -> now - message.getTimestamp() >= threshold);
+
+                try {
+                    sendParticipantBatch(participant, batch);
+                    replayed += batch.size();
+                } catch (IOException e) {
+                    // Keep the batch for the participant's next reconnect
+                    synchronized (participant.pendingMutex) {
+                        PendingQueue received = pendingMessages.get(participant.getId());
+                        if (received != null) {
+                            for (int i = batch.size() - 1; i >= 0; i--)
+                                received.addFirst(batch.get(i));
+                        }
+                    }
+                    lost();
+                    return;
+                }
+
+                workers.execute(this);
+            }
+
+            private void resend(List<Delivery> batch) {
+                try {
+                    resendParticipantMessages(participant, batch);
+                    replayed += batch.size();
+                } catch (IOException e) {
+                    participant.resendLater(batch);
+                    lost();
+                    return;
+                }
+
+                workers.execute(this);
+            }
+
+            private boolean isCurrent() {
+                synchronized (participant.pendingMutex) {
+                    return participant.isReplaying(generation);
+                }
+            }
+
+            /**
+             * Gives up after a failed write. The link is only closed if no later replay has
+             * taken over, since a reconnect may already have replaced it.
+             */
+            private void lost() {
+                if (!isCurrent())
+                    return;
+                participant.disconnect();
+                System.out.println("Error : Lost participant " + participant.getId() + " during replay.");
+            }
         }
 
-        public void setOnline(boolean b) {
-	        online = b;
+        class Retransmit implements Runnable {
+
+            private PStub participant;
+
+            Retransmit(PStub participant) {
+                this.participant = participant;
+            }
+
+            @Override
+            public void run() {
+                int generation = participant.getLinkGeneration();
+                boolean failed = false;
+                try {
+                    // Holding the lock keeps live writes from landing in between, so the
+                    // deliveries go back into the window in order
+                    synchronized (participant) {
+                        List<Delivery> overdue = participant.overdue(System.currentTimeMillis());
+                        if (overdue.isEmpty())
+                            return;
+
+                        try {
+                            resendParticipantMessages(participant, overdue);
+                            retransmitted.addAndGet(overdue.size());
+                        } catch (IOException e) {
+                            participant.unsent(overdue);
+                            failed = true;
+                        }
+                    }
+                } finally {
+                    participant.retransmitDone();
+                }
+                if (failed)
+                    linkFailed(participant, generation);
+            }
         }
+    }
 
-        public int getId() {
-	        return id;
+    /**
+     * Fans out published messages with weighted fair scheduling across publishers. Each
+     * publisher has its own queue, and the queues are served by deficit round robin: on its
+     * turn a publisher may fan out up to FANOUT_QUANTUM bytes per unit of weight, carrying
+     * any unused allowance to its next turn. A publisher with a deep queue therefore only
+     * delays the others by one turn. Within a publisher's queue messages are taken by
+     * priority lane, as from a pending queue, and messages of one priority keep their order.
+     * The writes themselves are left to the shard workers.
+     */
+    class FanOutThread extends Thread {
+
+        private final Hashtable<Integer, Publisher> publishers = new Hashtable<>();
+        private final Deque<Publisher> active = new ArrayDeque<>();
+
+        FanOutThread() {
+            setDaemon(true);
         }
 
-        public String getIpAddres() {
-            return ipAddress;
+        /**
+         * Queues a message in its publisher's turn, waiting while that publisher already has
+         * FANOUT_QUEUE_LIMIT messages queued, so a fast publisher is slowed to what the group
+         * can take rather than growing the queue without limit.
+         */
+        void submit(int publisherId, Message message) throws InterruptedException {
+            synchronized (this) {
+                Publisher publisher = publishers.get(publisherId);
+                if (publisher == null) {
+                    publisher = new Publisher(weights.getOrDefault(publisherId, 1));
+                    publishers.put(publisherId, publisher);
+                }
+                while (publisher.queue.size() >= FANOUT_QUEUE_LIMIT)
+                    wait();
+                if (publisher.queue.isEmpty())
+                    active.add(publisher);
+                publisher.queue.add(message.getPriority(), message);
+                notifyAll();
+            }
         }
 
-        public int getRecieveingPort() {
-	        return receivingPort;
+        @Override
+        public void run() {
+            List<Message> turn = new ArrayList<>();
+            while (true) {
+                synchronized (this) {
+                    try {
+                        while (active.isEmpty())
+                            wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    Publisher publisher = active.poll();
+                    publisher.deficit += publisher.weight * FANOUT_QUANTUM;
+                    while (!publisher.queue.isEmpty()
+                            && Math.max(publisher.queue.peek().getLength(), 1) <= publisher.deficit) {
+                        Message message = publisher.queue.poll();
+                        publisher.deficit -= Math.max(message.getLength(), 1);
+                        turn.add(message);
+                    }
+                    // Publishers waiting on a full queue may go on
+                    notifyAll();
+
+                    // An idle publisher does not bank allowance for later bursts
+                    if (publisher.queue.isEmpty())
+                        publisher.deficit = 0;
+                    else
+                        active.add(publisher);
+                }
+
+                try {
+                    for (Message message : turn)
+                        multicast(message);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                turn.clear();
+            }
         }
 
-        public boolean isOnline() {
-	        return online;
+        class Publisher {
+
+            private final int weight;
+            private final LaneQueue<Message> queue = new LaneQueue<>();
+            private long deficit;
+
+            Publisher(int weight) {
+                this.weight = weight;
+            }
         }
+    }
 
-        public String readUTF() throws IOException {
-            return in.readUTF();
+    /**
+     * Writes messages to one partition of the members, those whose id modulo the number of
+     * shards is this shard's index. Only the fan-out thread hands work to a shard, through a
+     * queue of at most SHARD_QUEUE_LIMIT fan-outs, and only the shard writes live messages to
+     * its members, so shards never wait on each other. The queue has a lane per priority, so
+     * an urgent message overtakes the bulk ones a slow shard has queued, and every member sees
+     * the messages of one priority in fan-out order. A shard that falls behind holds up the
+     * fan-out thread, and through it the publishers, instead of buffering without limit.
+     *
+     * A shard is not a member's only writer. Replays, retransmits, heartbeats and QUIT still
+     * write to the member's link under synchronized(participant), and a shard write waits for
+     * them. Recipients are still matched on the one fan-out thread under membersMutex; only
+     * the writes of live messages are spread across shards.
+     */
+    class ShardWorker extends Thread {
+
+        private final LaneQueue<FanOut> queue = new LaneQueue<>();
+
+        ShardWorker(int index) {
+            super("fanout-shard-" + index);
+            setDaemon(true);
         }
 
-        public void writeUTF(String msg) throws IOException {
-            out.writeUTF(msg);
+        /**
+         * Queues a fan-out in its message's priority lane, waiting while SHARD_QUEUE_LIMIT
+         * are already queued.
+         */
+        void submit(FanOut fanOut) throws InterruptedException {
+            synchronized (queue) {
+                while (queue.size() >= SHARD_QUEUE_LIMIT)
+                    queue.wait();
+                queue.add(fanOut.message.getPriority(), fanOut);
+                queue.notifyAll();
+            }
         }
 
-        public void writeInt(int code) throws IOException {
-            out.writeInt(code);
+        @Override
+        public void run() {
+            while (true) {
+                FanOut fanOut;
+                synchronized (queue) {
+                    try {
+                        while (queue.isEmpty())
+                            queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    fanOut = queue.poll();
+                    queue.notifyAll();
+                }
+                deliver(fanOut.message, fanOut.participants);
+            }
         }
+    }
 
-        public void connect() {
+    /**
+     * A message and the members of one shard it goes to.
+     */
+    class FanOut {
 
-            // System.out.println("Connecting to participant " + ipAddress + " " + receivingPort);
+        private final Message message;
+        private final List<PStub> participants;
 
-            int attempts = 0;
+        FanOut(Message message, List<PStub> participants) {
+            this.message = message;
+            this.participants = participants;
+        }
+    }
+
+    /**
+     * Periodically compacts the write-ahead log into a fresh membership snapshot.
+     */
+    class SnapshotThread extends Thread {
+
+        SnapshotThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
             while (true) {
-                // Establish a connection
                 try {
-                    // Get socket connection
-                    partSocket = new Socket(ipAddress, receivingPort);
-                    out = new DataOutputStream(partSocket.getOutputStream());
-                    in = new DataInputStream(partSocket.getInputStream());
-                    break;
-                } catch (IOException e) {
-                    // Errors expected, simply tries again 1 second later
+                    Thread.sleep(SNAPSHOT_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
                 }
 
-                if (attempts >= 10) {
-                    System.out.println("Coordinator Failed to connect to Participant");
-                    online = false;
+                stateStore.snapshot();
+            }
+        }
+    }
+
+    /**
+     * @return the members with a delivery link open, including those that are offline
+     * while a replay catches them up or until they acknowledge
+     */
+    private List<PStub> connectedMembers() {
+        List<PStub> connected = new ArrayList<>();
+        synchronized (membersMutex) {
+            for (PStub participant : members.values()) {
+                if (participant.isConnected())
+                    connected.add(participant);
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Keeps delivery links to connected members alive. Links that have been quiet for a heartbeat
+     * interval get a heartbeat frame, and a link whose heartbeat fails is closed and its
+     * member taken offline, so its messages are queued instead.
+     */
+    class HeartbeatThread extends Thread {
+
+        HeartbeatThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(heartbeatInterval);
+                } catch (InterruptedException e) {
                     return;
                 }
 
-                // System.out.println("Unable to connect to participant... Trying again in 1 second");
-                attempts++;
+                long now = System.currentTimeMillis();
+                for (PStub participant : connectedMembers()) {
+                    // A delivery in progress already proves the link, or the watchdog will
+                    if (participant.writingSince() != 0 || now - participant.getLastWrite() < heartbeatInterval)
+                        continue;
+
+                    int generation = participant.getLinkGeneration();
+                    try {
+                        synchronized (participant) {
+                            participant.writeInt(HEARTBEAT);
+                            participant.flush();
+                        }
+                    } catch (IOException e) {
+                        linkFailed(participant, generation);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes delivery links whose writer has been blocked for longer than the idle timeout,
+     * e.g. on a peer that stopped reading. Closing the link fails the blocked write, which
+     * frees the thread, a shard or a replay worker, and takes the member offline. Runs apart
+     * from the heartbeats, which could themselves end up waiting behind such a writer.
+     */
+    class WatchdogThread extends Thread {
+
+        WatchdogThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
                 try {
-                    Thread.sleep(1000);
+                    Thread.sleep(heartbeatInterval);
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                for (PStub participant : connectedMembers()) {
+                    int generation = participant.getLinkGeneration();
+                    long since = participant.writingSince();
+                    if (since != 0 && now - since > idleTimeout) {
+                        System.out.println("Error : Delivery to participant " + participant.getId() + " is stuck.");
+
+                        // Unblock the stuck writer first, it holds the member's monitor
+                        participant.abort(generation);
+                        linkFailed(participant, generation);
+                    }
                 }
             }
+        }
+    }
 
-            // System.out.println("Successfully connected to participant " + ipAddress + ":" + receivingPort);
+    /**
+     * Finds participants that have not acknowledged deliveries within ACK_TIMEOUT and hands
+     * them to the replay workers to send those again. The participant discards any it
+     * already has by sequence number. The writes are left to the workers, so a participant
+     * that stopped reading holds up one worker until the watchdog frees it, not
+     * retransmission to the whole group.
+     */
+    class RetransmitThread extends Thread {
+
+        RetransmitThread() {
+            setDaemon(true);
         }
 
-        public void disconnect() {
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(ACK_TIMEOUT / 2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                for (PStub participant : connectedMembers()) {
+                    if (participant.startRetransmit(now))
+                        replayScheduler.retransmit(participant);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a one-line summary of the in-flight windows of connected members
+     */
+    private String deliveryReport() {
+        long inFlight = 0;
+        int largest = 0;
+        List<PStub> connected = connectedMembers();
+        for (PStub participant : connected) {
+            int window = participant.inFlight();
+            inFlight += window;
+            largest = Math.max(largest, window);
+        }
+        return "Delivery: " + inFlight + " unacknowledged across " + connected.size()
+                + " participant(s), largest window " + largest + "/" + UNCONFIRMED_LIMIT + ", "
+                + acksReceived.get() + " ack(s), " + retransmitted.get() + " retransmitted";
+    }
+
+    /**
+     * Periodically prints delivery statistics, skipping intervals in which nothing changed.
+     */
+    class StatsThread extends Thread {
+
+        StatsThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            String last = null;
+            while (true) {
+                try {
+                    Thread.sleep(STATS_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                String report = "";
+                if (compressionThreshold > 0)
+                    report = compression.report();
+                if (atLeastOnce)
+                    report += (report.isEmpty() ? "" : "\n") + deliveryReport();
+                if (spilledMessages.get() > 0)
+                    report += (report.isEmpty() ? "" : "\n") + "Pending: " + pendingMemory.get()
+                            + " byte(s) in memory, " + spilledMessages.get() + " message(s) spilled to disk";
+                if (!report.isEmpty() && !report.equals(last))
+                    System.out.println(report);
+                last = report;
+            }
+        }
+    }
+
+    /**
+     * Crash-safe persistence of the group membership. Every membership change is appended to a
+     * write-ahead log, and the log is periodically folded into a compact binary snapshot. On
+     * startup the files are memory-mapped and replayed to rebuild members before any
+     * participant connects. Callers append under membersMutex so log order matches the order
+     * in which members changed, then call commit() once they have released it, so the fsync
+     * does not hold up the group and one fsync covers every change made in the meantime.
+     *
+     * Each snapshot starts a new generation of the log and records it, so the snapshot can be
+     * written outside membersMutex while changes go to the new log, and a restore replays
+     * only the logs the snapshot does not cover. Generation 0 is the log of older versions.
+     *
+     * Snapshot: magic, version, log generation, count, then per member id, ip, port, online
+     * flag, delivery cursor and filters. Version 1 snapshots, without filters, and version 2,
+     * without the generation, are still read. Log records: opcode and id, followed by the
+     * fields that opcode changes.
+     */
+    class StateStore {
+
+        private static final int SNAPSHOT_MAGIC = 0x504d4353;
+        private static final int SNAPSHOT_VERSION = 3;
+
+        private static final byte WAL_REGISTER = 1;
+        private static final byte WAL_DEREGISTER = 2;
+        private static final byte WAL_ONLINE = 3;
+        private static final byte WAL_OFFLINE = 4;
+        private static final byte WAL_FILTERS = 5;
+
+        private String baseName;
+        private File snapshotFile;
+
+        // Generation of the log being appended to, and of the first log the installed
+        // snapshot does not cover
+        private long generation;
+        private long snapshotGeneration;
+
+        private FileOutputStream walFileStream;
+        private DataOutputStream wal;
+        private boolean dirty;
+
+        // Records appended so far, and how many of them are on disk. synced is guarded by
+        // syncMutex, which is taken before membersMutex.
+        private volatile long appended;
+        private long synced;
+        private final Object syncMutex = new Object();
+
+        StateStore(String baseName) {
+            this.baseName = baseName;
+            snapshotFile = new File(baseName + ".snapshot");
+        }
+
+        private File walFile(long generation) {
+            return new File(baseName + ".wal" + (generation == 0 ? "" : "." + generation));
+        }
+
+        /**
+         * Rebuilds members from the snapshot and then the log, and opens the log for appending.
+         */
+        void restore() {
+            long start = System.currentTimeMillis();
+
+            try {
+                if (snapshotFile.exists())
+                    readSnapshot(map(snapshotFile));
+
+                // Earlier logs are left by a crash right after the snapshot was installed
+                for (long old = snapshotGeneration - 1; old >= 0 && walFile(old).exists(); old--)
+                    walFile(old).delete();
+
+                // Later logs are left by snapshots that were never installed
+                generation = snapshotGeneration;
+                for (long next = snapshotGeneration; walFile(next).exists(); next++) {
+                    File walFile = walFile(next);
+                    long valid = replayWal(map(walFile));
+
+                    // Drop a torn record left by a crash so new records stay readable
+                    if (valid < walFile.length()) {
+                        try (RandomAccessFile file = new RandomAccessFile(walFile, "rw")) {
+                            file.setLength(valid);
+                        }
+                    }
+                    dirty |= valid > 0 || next > snapshotGeneration;
+                    generation = next;
+                }
+            } catch (IOException e) {
+                System.out.println("Error : Failed to restore coordinator state.");
+                e.printStackTrace();
+            }
+
+            for (PStub participant : members.values()) {
+                pendingMessages.put(participant.getId(), new PendingQueue(participant.getId()));
+                subscriptions.subscribe(participant.getId(), participant.getFilters());
+            }
+
+            if (!members.isEmpty()) {
+                System.out.println("Restored " + members.size() + " participant(s) in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+
             try {
-                partSocket.close();
+                openWal(generation, true);
             } catch (IOException e) {
-                //
+                System.out.println("Error : Failed to open coordinator write-ahead log.");
             }
         }
-    }
 
-    class Message {
+        private MappedByteBuffer map(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
 
-	    String message;
-	    long timestamp;
+        private void readSnapshot(MappedByteBuffer buffer) {
+            try {
+                int version = 0;
+                if (buffer.getInt() == SNAPSHOT_MAGIC)
+                    version = buffer.getInt();
+                if (version < 1 || version > SNAPSHOT_VERSION) {
+                    System.out.println("Error : Unrecognized snapshot file, ignoring.");
+                    return;
+                }
+                if (version >= 3)
+                    snapshotGeneration = buffer.getLong();
+
+                int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    int id = buffer.getInt();
+                    String ip = readString(buffer);
+                    int port = buffer.getInt();
+                    boolean online = buffer.get() != 0;
+                    long cursor = buffer.getLong();
+                    PStub participant = new PStub(id, ip, port, online, cursor);
+                    if (version >= 2)
+                        participant.setFilters(readFilters(buffer));
+                    members.put(id, participant);
+                }
+            } catch (BufferUnderflowException e) {
+                System.out.println("Error : Truncated snapshot file.");
+            }
+        }
 
-	    Message(String msg) {
-	        message = msg;
-	        timestamp = System.currentTimeMillis();
+        /**
+         * Applies log records on top of the snapshot.
+         *
+         * @return length of the log up to the last complete record
+         */
+        private long replayWal(MappedByteBuffer buffer) {
+            int valid = 0;
+            try {
+                while (buffer.hasRemaining()) {
+                    byte op = buffer.get();
+                    int id = buffer.getInt();
+                    PStub participant = members.get(id);
+
+                    switch (op) {
+                        case WAL_REGISTER:
+                            String ip = readString(buffer);
+                            int port = buffer.getInt();
+                            members.put(id, new PStub(id, ip, port, true, 0));
+                            break;
+                        case WAL_DEREGISTER:
+                            members.remove(id);
+                            break;
+                        case WAL_ONLINE:
+                            int receivingPort = buffer.getInt();
+                            if (participant != null) {
+                                participant.setRecieveingPort(receivingPort);
+                                participant.setOnline(true);
+                            }
+                            break;
+                        case WAL_OFFLINE:
+                            long cursor = buffer.getLong();
+                            if (participant != null) {
+                                participant.setOnline(false);
+                                participant.restoreDeliveredSequence(cursor);
+                            }
+                            break;
+                        case WAL_FILTERS:
+                            List<String> filters = readFilters(buffer);
+                            if (participant != null)
+                                participant.setFilters(filters);
+                            break;
+                        default:
+                            System.out.println("Error : Corrupt write-ahead log record.");
+                            return valid;
+                    }
+                    valid = buffer.position();
+                }
+            } catch (BufferUnderflowException e) {
+                // Torn final record
+            }
+            return valid;
         }
 
-        public String getMessage() {
-            return message;
+        private String readString(MappedByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getShort() & 0xffff];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
         }
 
-        public long getTimestamp() {
-            return timestamp;
+        private void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
         }
 
-        public void setMessage(String message) {
-            this.message = message;
+        private List<String> readFilters(MappedByteBuffer buffer) {
+            int count = buffer.getShort() & 0xffff;
+            List<String> filters = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                filters.add(readString(buffer));
+            return filters;
         }
 
-        public void setTimestamp(long timestamp) {
-            this.timestamp = timestamp;
+        private void writeFilters(DataOutputStream out, List<String> filters) throws IOException {
+            out.writeShort(filters.size());
+            for (String filter : filters)
+                writeString(out, filter);
+        }
+
+        private void openWal(long generation, boolean append) throws IOException {
+            walFileStream = new FileOutputStream(walFile(generation), append);
+            wal = new DataOutputStream(new BufferedOutputStream(walFileStream));
+        }
+
+        void logRegister(PStub participant) {
+            try {
+                wal.writeByte(WAL_REGISTER);
+                wal.writeInt(participant.getId());
+                writeString(wal, participant.getIpAddres());
+                wal.writeInt(participant.getRecieveingPort());
+                appended();
+            } catch (IOException e) {
+                walFailed(e);
+            }
+        }
+
+        void logFilters(PStub participant) {
+            try {
+                wal.writeByte(WAL_FILTERS);
+                wal.writeInt(participant.getId());
+                writeFilters(wal, participant.getFilters());
+                appended();
+            } catch (IOException e) {
+                walFailed(e);
+            }
+        }
+
+        void logDeregister(int id) {
+            try {
+                wal.writeByte(WAL_DEREGISTER);
+                wal.writeInt(id);
+                appended();
+            } catch (IOException e) {
+                walFailed(e);
+            }
+        }
+
+        void logOnline(PStub participant) {
+            try {
+                wal.writeByte(WAL_ONLINE);
+                wal.writeInt(participant.getId());
+                wal.writeInt(participant.getRecieveingPort());
+                appended();
+            } catch (IOException e) {
+                walFailed(e);
+            }
+        }
+
+        void logOffline(PStub participant) {
+            try {
+                wal.writeByte(WAL_OFFLINE);
+                wal.writeInt(participant.getId());
+                wal.writeLong(participant.getDeliveredSequence());
+                appended();
+            } catch (IOException e) {
+                walFailed(e);
+            }
+        }
+
+        private void appended() {
+            appended++;
+            dirty = true;
+        }
+
+        /**
+         * Makes every record appended so far durable. Callers must not hold membersMutex;
+         * whoever syncs first also covers the records appended by those waiting behind it.
+         */
+        void commit() {
+            long target = appended;
+            synchronized (syncMutex) {
+                if (synced >= target)
+                    return;
+
+                FileOutputStream stream;
+                synchronized (membersMutex) {
+                    target = appended;
+                    try {
+                        wal.flush();
+                    } catch (IOException e) {
+                        walFailed(e);
+                        return;
+                    }
+                    stream = walFileStream;
+                }
+
+                try {
+                    stream.getFD().sync();
+                    synced = target;
+                } catch (IOException e) {
+                    walFailed(e);
+                }
+            }
+        }
+
+        private void walFailed(IOException e) {
+            System.out.println("Error : Failed to append to coordinator write-ahead log.");
+            e.printStackTrace();
+        }
+
+        /**
+         * Writes every member to a new snapshot, atomically replaces the old one and deletes
+         * the logs it covers. Skipped when nothing changed since the last snapshot. Only the
+         * copy of the members and the switch to a new log happen under membersMutex.
+         */
+        void snapshot() {
+            ByteArrayOutputStream image = new ByteArrayOutputStream();
+            long covered;
+            synchronized (syncMutex) {
+                long closed;
+                DataOutputStream previous;
+                FileOutputStream previousStream;
+                synchronized (membersMutex) {
+                    if (!dirty)
+                        return;
+
+                    try {
+                        DataOutputStream snapshot = new DataOutputStream(image);
+                        snapshot.writeInt(SNAPSHOT_MAGIC);
+                        snapshot.writeInt(SNAPSHOT_VERSION);
+                        snapshot.writeLong(generation + 1);
+                        snapshot.writeInt(members.size());
+                        for (PStub participant : members.values()) {
+                            snapshot.writeInt(participant.getId());
+                            writeString(snapshot, participant.getIpAddres());
+                            snapshot.writeInt(participant.getRecieveingPort());
+                            snapshot.writeByte(participant.isOnline() ? 1 : 0);
+                            snapshot.writeLong(participant.getDeliveredSequence());
+                            writeFilters(snapshot, participant.getFilters());
+                        }
+
+                        // Records from here on go to the next log
+                        wal.flush();
+                        previous = wal;
+                        previousStream = walFileStream;
+                        openWal(generation + 1, false);
+                    } catch (IOException e) {
+                        System.out.println("Error : Failed to start a new coordinator write-ahead log.");
+                        e.printStackTrace();
+                        return;
+                    }
+                    generation++;
+                    covered = generation;
+                    closed = appended;
+                    dirty = false;
+                }
+
+                // The old log stays until the snapshot is installed, so it must be complete
+                try {
+                    previousStream.getFD().sync();
+                    previous.close();
+                    synced = closed;
+                } catch (IOException e) {
+                    walFailed(e);
+                }
+            }
+
+            File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+            try (FileOutputStream fileStream = new FileOutputStream(tmpFile)) {
+                image.writeTo(fileStream);
+                fileStream.getFD().sync();
+                Files.move(tmpFile.toPath(), snapshotFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.out.println("Error : Failed to write coordinator snapshot.");
+                e.printStackTrace();
+
+                // The logs since the installed snapshot are all kept, try again next time
+                synchronized (membersMutex) {
+                    dirty = true;
+                }
+                return;
+            }
+
+            // Records up to here are in the snapshot
+            for (long old = snapshotGeneration; old < covered; old++)
+                walFile(old).delete();
+            snapshotGeneration = covered;
+        }
+    }
+
+    class PStub {
+
+	    private int id;
+	    private String ipAddress;
+	    private int receivingPort;
+	    private boolean online;
+
+        // Number of messages written to this participant's delivery link so far
+        private long deliveredSequence;
+
+        // Recently written messages not yet known to be durable at the participant, oldest first
+        private Deque<Delivery> unconfirmed = new LinkedList<>();
+
+        // Unconfirmed deliveries handed back by resumeFrom(), for the replay to send again
+        private Deque<Delivery> resending = new ArrayDeque<>();
+
+        // Guards unconfirmed and resending. Kept apart from the stub's own monitor, which a
+        // writer holds for as long as its write is blocked, so reading the window never waits
+        // on a participant that stopped reading.
+        private final Object windowMutex = new Object();
+
+        // Whether a retransmit task is queued or running. Guarded by windowMutex.
+        private boolean retransmitting;
+
+        // Bytes of the deliveries in unconfirmed and resending, also counted in pendingMemory.
+        // Guarded by windowMutex.
+        private long windowMemory;
+
+        // Bumped for every replay started, so only the latest one delivers. Guarded by
+        // pendingMutex.
+        private int replay;
+
+        // Offline only because too many deliveries are unacknowledged
+        private boolean paused;
+
+        // Whether this participant negotiated deflated delivery frames
+        private boolean compression;
+
+        // Whether deliveries share the participant's command connection
+        private boolean multiplexed;
+
+        // Which messages this participant wants, empty for all of them
+        private List<String> filters = new ArrayList<>();
+
+        // Guards the online flag together with the participant's pending queue, so a message
+        // is either written or queued, never both or neither
+        final Object pendingMutex = new Object();
+
+        // When the last frame was flushed, and when the frame being written was started
+        private volatile long lastWrite;
+        private volatile long writingSince;
+
+	    private Socket partSocket;
+	    private DataInputStream in;
+        private DataOutputStream out;
+
+        // Bumped for every link opened or attached, so a connection thread can tell whether
+        // the link is still the one it opened. Guarded by linkMutex, as are the link fields
+        // when they change.
+        private int linkGeneration;
+        private final Object linkMutex = new Object();
+
+        // private long timeSinceOnline;
+
+        /**
+         * Creates a stub without opening the delivery link.
+         */
+        PStub(int id, String ipAddress, int recievingPort, boolean online, long deliveredSequence) {
+            this.id = id;
+            this.ipAddress = ipAddress;
+            this.receivingPort = recievingPort;
+            this.online = online;
+            this.deliveredSequence = deliveredSequence;
+        }
+
+        public void setRecieveingPort(int port) {
+            receivingPort = port;
+        }
+
+        public List<String> getFilters() {
+            return filters;
+        }
+
+        public void setFilters(List<String> filters) {
+            this.filters = filters;
+        }
+
+        public void setOnline(boolean b) {
+	        online = b;
+        }
+
+        public int getId() {
+	        return id;
+        }
+
+        public String getIpAddres() {
+            return ipAddress;
+        }
+
+        public int getRecieveingPort() {
+	        return receivingPort;
+        }
+
+        public boolean isOnline() {
+	        return online;
+        }
+
+        public boolean acceptsCompression() {
+            return compression;
+        }
+
+        public void setCompression(boolean compression) {
+            this.compression = compression;
+        }
+
+        public long getDeliveredSequence() {
+            return deliveredSequence;
+        }
+
+        public long nextSequence() {
+            return ++deliveredSequence;
+        }
+
+        /**
+         * Remembers a written message until the participant confirms it, forgetting the oldest
+         * ones once they pass the threshold, or when not waiting for acknowledgements, once
+         * there are too many.
+         */
+        public void sent(long sequence, Message message, int threshold) {
+            synchronized (windowMutex) {
+                unconfirmed.add(new Delivery(sequence, message));
+                hold(message.getFootprint());
+
+                long now = System.currentTimeMillis();
+                while (!unconfirmed.isEmpty() && (!atLeastOnce && unconfirmed.size() > UNCONFIRMED_LIMIT
+                        || now - unconfirmed.peek().getMessage().getTimestamp() >= threshold))
+                    release(unconfirmed.poll());
+            }
+        }
+
+        /**
+         * Forgets deliveries the participant has acknowledged.
+         */
+        public void acknowledge(long sequence) {
+            synchronized (windowMutex) {
+                while (!unconfirmed.isEmpty() && unconfirmed.peek().getSequence() <= sequence)
+                    release(unconfirmed.poll());
+            }
+        }
+
+        public boolean windowFull() {
+            synchronized (windowMutex) {
+                return unconfirmed.size() >= UNCONFIRMED_LIMIT;
+            }
+        }
+
+        public int inFlight() {
+            synchronized (windowMutex) {
+                return unconfirmed.size();
+            }
+        }
+
+        /**
+         * Hands back every unacknowledged delivery once the oldest has waited ACK_TIMEOUT, to
+         * be sent again under the same sequence numbers.
+         */
+        public List<Delivery> overdue(long now) {
+            synchronized (windowMutex) {
+                if (unconfirmed.isEmpty() || now - unconfirmed.peek().getSentAt() < ACK_TIMEOUT)
+                    return new ArrayList<>();
+
+                List<Delivery> resend = new ArrayList<>(unconfirmed);
+                unconfirmed.clear();
+                for (Delivery delivery : resend)
+                    release(delivery);
+
+                // Past the threshold they are dropped, as queued messages are
+                resend.removeIf(delivery -> now - delivery.getMessage().getTimestamp() >= threshold);
+                return resend;
+            }
+        }
+
+        /**
+         * Claims the participant's overdue deliveries for a retransmit task, unless one is
+         * already queued or running.
+         *
+         * @return true if the oldest unacknowledged delivery has waited ACK_TIMEOUT
+         */
+        public boolean startRetransmit(long now) {
+            synchronized (windowMutex) {
+                if (retransmitting || unconfirmed.isEmpty()
+                        || now - unconfirmed.peek().getSentAt() < ACK_TIMEOUT)
+                    return false;
+                retransmitting = true;
+                return true;
+            }
+        }
+
+        public void retransmitDone() {
+            synchronized (windowMutex) {
+                retransmitting = false;
+            }
+        }
+
+        /**
+         * Whether delivery is held back until the participant acknowledges. Guarded by
+         * pendingMutex.
+         */
+        public boolean isPaused() {
+            return paused;
+        }
+
+        public void setPaused(boolean paused) {
+            this.paused = paused;
+        }
+
+        /**
+         * Puts deliveries that could not be sent again back in front of the unconfirmed ones.
+         */
+        public void unsent(List<Delivery> deliveries) {
+            synchronized (windowMutex) {
+                for (int i = deliveries.size() - 1; i >= 0; i--) {
+                    unconfirmed.addFirst(deliveries.get(i));
+                    hold(deliveries.get(i).getMessage().getFootprint());
+                }
+            }
+        }
+
+        /**
+         * Resumes from the participant's durable cursor: drops what it has confirmed and keeps
+         * what it has not, along with anything an earlier replay had yet to send again, for the
+         * next replay to resend under the same sequence numbers. Also holds the stub's monitor,
+         * so deliveredSequence cannot move under a writer.
+         */
+        public synchronized void resumeFrom(long cursor) {
+            synchronized (windowMutex) {
+                List<Delivery> resend = new ArrayList<>(resending);
+                resend.addAll(unconfirmed);
+                resend.sort(Comparator.comparingLong(Delivery::getSequence));
+                resending.clear();
+                unconfirmed.clear();
+                for (Delivery delivery : resend) {
+                    if (delivery.getSequence() > cursor)
+                        resending.add(delivery);
+                    else
+                        release(delivery);
+                }
+
+                if (!resending.isEmpty() && resending.peek().getSequence() > cursor + 1
+                        || resending.isEmpty() && deliveredSequence > cursor) {
+                    System.out.println("Error : Participant " + id + " missed messages that are no longer kept.");
+                }
+
+                // Our cursor can be behind after a restart from an older snapshot
+                deliveredSequence = Math.max(deliveredSequence, cursor);
+
+                expire(System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * Drops retained deliveries that have passed the threshold, as queued messages are.
+         * Caller holds windowMutex.
+         */
+        private void expire(long now) {
+            for (Deque<Delivery> window : List.of(unconfirmed, resending)) {
+                Iterator<Delivery> deliveries = window.iterator();
+                while (deliveries.hasNext()) {
+                    Delivery delivery = deliveries.next();
+                    if (now - delivery.getMessage().getTimestamp() >= threshold) {
+                        deliveries.remove();
+                        release(delivery);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Forgets every retained delivery once the participant has left the group.
+         */
+        public void discardWindow() {
+            synchronized (windowMutex) {
+                unconfirmed.clear();
+                resending.clear();
+                hold(-windowMemory);
+            }
+        }
+
+        private void release(Delivery delivery) {
+            hold(-delivery.getMessage().getFootprint());
+        }
+
+        private void hold(long bytes) {
+            windowMemory += bytes;
+            pendingMemory.addAndGet(bytes);
+        }
+
+        /**
+         * @return up to max of the deliveries to send again, oldest first
+         */
+        public List<Delivery> takeResend(int max) {
+            synchronized (windowMutex) {
+                List<Delivery> batch = new ArrayList<>(Math.min(max, resending.size()));
+                while (batch.size() < max && !resending.isEmpty()) {
+                    Delivery delivery = resending.poll();
+                    release(delivery);
+                    batch.add(delivery);
+                }
+                return batch;
+            }
+        }
+
+        /**
+         * Puts deliveries taken by takeResend() back, to be sent again after the next reconnect.
+         */
+        public void resendLater(List<Delivery> deliveries) {
+            synchronized (windowMutex) {
+                for (int i = deliveries.size() - 1; i >= 0; i--) {
+                    resending.addFirst(deliveries.get(i));
+                    hold(deliveries.get(i).getMessage().getFootprint());
+                }
+            }
+        }
+
+        /**
+         * @return the generation of the replay being started. Caller holds pendingMutex.
+         */
+        public int startReplay() {
+            return ++replay;
+        }
+
+        /**
+         * Whether a replay is still the latest one started. Caller holds pendingMutex.
+         */
+        public boolean isReplaying(int generation) {
+            return replay == generation;
+        }
+
+        public void restoreDeliveredSequence(long sequence) {
+            deliveredSequence = Math.max(deliveredSequence, sequence);
+        }
+
+        public String readUTF() throws IOException {
+            return in.readUTF();
+        }
+
+        public long readLong() throws IOException {
+            return in.readLong();
+        }
+
+        public void writeLong(long value) throws IOException {
+            link().writeLong(value);
+        }
+
+        public void writeUTF(String msg) throws IOException {
+            link().writeUTF(msg);
+        }
+
+        /**
+         * Writes a length-prefixed byte array.
+         */
+        public void writeBytes(byte[] bytes) throws IOException {
+            DataOutputStream out = link();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        public void writeInt(int code) throws IOException {
+            link().writeInt(code);
+        }
+
+        /**
+         * Sends what has been written since the last flush, one whole frame at a time.
+         */
+        public void flush() throws IOException {
+            link().flush();
+            writingSince = 0;
+            lastWrite = System.currentTimeMillis();
+        }
+
+        private DataOutputStream link() throws IOException {
+            DataOutputStream link = out;
+            if (link == null)
+                throw new IOException("Participant " + id + " has no delivery link");
+            if (writingSince == 0)
+                writingSince = System.currentTimeMillis();
+            return link;
+        }
+
+        public boolean isMultiplexed() {
+            return multiplexed;
+        }
+
+        public long getLastWrite() {
+            return lastWrite;
+        }
+
+        public long writingSince() {
+            return writingSince;
+        }
+
+        /**
+         * Delivers over the participant's own command connection instead of a link of our own.
+         * Frames are buffered and handed to the connection whole on flush, tagged as deliveries.
+         */
+        public void attach(Socket connection, DataOutputStream connectionOut) {
+            synchronized (linkMutex) {
+                multiplexed = true;
+                partSocket = connection;
+                in = null;
+                out = new DataOutputStream(new MultiplexedOutput(connectionOut));
+                linkGeneration++;
+            }
+        }
+
+        public int getLinkGeneration() {
+            synchronized (linkMutex) {
+                return linkGeneration;
+            }
+        }
+
+        /**
+         * Opens the delivery link to the participant's listener, retrying for a short while.
+         *
+         * @return true if the link was established
+         */
+        public boolean connect() {
+
+            // System.out.println("Connecting to participant " + ipAddress + " " + receivingPort);
+
+            int attempts = 0;
+            while (true) {
+                // Establish a connection
+                try {
+                    // Get socket connection
+                    Socket socket = new Socket(ipAddress, receivingPort);
+                    synchronized (linkMutex) {
+                        partSocket = socket;
+                        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                        in = new DataInputStream(socket.getInputStream());
+                        multiplexed = false;
+                        linkGeneration++;
+                    }
+                    break;
+                } catch (IOException e) {
+                    // Errors expected, simply tries again 1 second later
+                }
+
+                if (attempts >= 10) {
+                    System.out.println("Coordinator Failed to connect to Participant");
+                    online = false;
+                    return false;
+                }
+
+                // System.out.println("Unable to connect to participant... Trying again in 1 second");
+                attempts++;
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            // System.out.println("Successfully connected to participant " + ipAddress + ":" + receivingPort);
+            return true;
+        }
+
+        public boolean isConnected() {
+            return out != null && partSocket != null && !partSocket.isClosed();
+        }
+
+        /**
+         * Closes the socket under the delivery link, even a shared multiplexed one, to fail
+         * a write that is blocked on it. Only if the link is still the given generation.
+         */
+        public void abort(int generation) {
+            synchronized (linkMutex) {
+                if (linkGeneration != generation)
+                    return;
+                try {
+                    if (partSocket != null)
+                        partSocket.close();
+                } catch (IOException e) {
+                    //
+                }
+            }
+        }
+
+        /**
+         * Closes the delivery link. What it leaves unconfirmed is kept for the next reconnect,
+         * less anything past the threshold, which would be dropped by then anyway.
+         */
+        public void disconnect() {
+            synchronized (linkMutex) {
+                writingSince = 0;
+
+                // A multiplexed link belongs to the command connection, just stop using it
+                if (multiplexed) {
+                    out = null;
+                } else {
+                    try {
+                        if (partSocket != null)
+                            partSocket.close();
+                    } catch (IOException e) {
+                        //
+                    }
+                }
+            }
+
+            synchronized (windowMutex) {
+                expire(System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * Closes the delivery link if it is still the given generation.
+         *
+         * @return false if a newer link has replaced it
+         */
+        public boolean disconnect(int generation) {
+            synchronized (linkMutex) {
+                if (linkGeneration != generation)
+                    return false;
+                disconnect();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Buffers a delivery frame and writes it to a shared command connection in one piece, so
+     * it cannot interleave with command responses or other deliveries.
+     */
+    class MultiplexedOutput extends ByteArrayOutputStream {
+
+        private DataOutputStream connection;
+
+        MultiplexedOutput(DataOutputStream connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (size() == 0)
+                return;
+            synchronized (connection) {
+                connection.writeInt(TAG_DELIVERY);
+                writeTo(connection);
+                connection.flush();
+            }
+            reset();
+        }
+    }
+
+    /**
+     * A multicast message, kept as the UTF-8 bytes the publisher sent. They are deflated once,
+     * if large enough to be worth it, when the message is created; every member then shares
+     * the same bytes. A compacted message keeps only the compressed copy and inflates it on demand.
+     */
+    class Message {
+
+	    private volatile byte[] payload;
+	    private byte[] compressed;
+	    private int length;
+	    private int priority;
+	    private Map<String, String> headers;
+	    private int footprint;
+	    long timestamp;
+
+	    /**
+	     * @param payload the UTF-8 encoded message, which the message keeps
+	     */
+	    Message(byte[] payload, int priority, Map<String, String> headers) {
+	        this.payload = payload;
+	        length = payload.length;
+	        this.priority = priority;
+	        this.headers = headers;
+	        timestamp = System.currentTimeMillis();
+
+	        if (compressionThreshold > 0 && length >= compressionThreshold) {
+	            byte[] deflated = compression.deflate(payload);
+	            if (deflated.length < length)
+	                compressed = deflated;
+            }
+            footprint = (compressPending && compressed != null ? compressed.length : length)
+                    + PENDING_OVERHEAD;
+        }
+
+        /**
+         * Recreates a message read back from a spill file, in the form it was stored in.
+         */
+        Message(byte[] stored, boolean deflated, int length, int priority, long timestamp) {
+            if (deflated)
+                compressed = stored;
+            else
+                payload = stored;
+            this.length = length;
+            this.priority = priority;
+            this.timestamp = timestamp;
+            footprint = stored.length + PENDING_OVERHEAD;
+        }
+
+        public String getMessage() {
+            return new String(getPayload(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the UTF-8 encoded message
+         */
+        public byte[] getPayload() {
+            byte[] bytes = payload;
+            if (bytes != null)
+                return bytes;
+            return compression.inflate(compressed, length);
+        }
+
+        /**
+         * @return the deflated message, or null if it was not worth compressing
+         */
+        public byte[] getCompressed() {
+            return compressed;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return roughly how much heap the message takes while queued, which stays the same
+         * whether or not it has been compacted
+         */
+        public int getFootprint() {
+            return footprint;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return the headers to match against filters, or null if there are none
+         */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Drops the uncompressed copy, if there is a compressed one to fall back on.
+         */
+        public void compact() {
+            if (compressed != null)
+                payload = null;
+        }
+    }
+
+    /**
+     * Chooses the priority lane to take from next: the most urgent lane with something
+     * waiting, unless a lane has been passed over STARVATION_LIMIT times in a row while it
+     * had something waiting, in which case that lane gets the turn. Callers keep the lanes
+     * themselves and report what they add and take. Not thread safe.
+     */
+    class LaneScheduler {
+
+        private final int[] counts = new int[PRIORITY_BULK + 1];
+        private final int[] skipped = new int[PRIORITY_BULK + 1];
+
+        void added(int lane) {
+            counts[lane]++;
+        }
+
+        /**
+         * Forgets items that went missing from a lane without being taken.
+         */
+        void lost(int lane, int count) {
+            counts[lane] -= count;
+        }
+
+        /**
+         * @return the lane to take from next, or -1 if all are empty
+         */
+        int next() {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0 && skipped[i] >= STARVATION_LIMIT)
+                    return i;
+            }
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0)
+                    return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Records that an item was taken from the lane next() chose.
+         */
+        void took(int lane) {
+            for (int i = lane + 1; i < counts.length; i++) {
+                if (counts[i] > 0)
+                    skipped[i]++;
+            }
+            skipped[lane] = 0;
+            counts[lane]--;
+        }
+
+        void clear() {
+            Arrays.fill(counts, 0);
+            Arrays.fill(skipped, 0);
+        }
+    }
+
+    /**
+     * A FIFO lane per priority, taken from in the order a LaneScheduler chooses. Not thread
+     * safe.
+     */
+    class LaneQueue<T> {
+
+        private final Deque<T>[] lanes;
+        private final LaneScheduler scheduler = new LaneScheduler();
+        private int size;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        LaneQueue() {
+            lanes = new Deque[PRIORITY_BULK + 1];
+            for (int i = 0; i < lanes.length; i++)
+                lanes[i] = new ArrayDeque<>();
+        }
+
+        void add(int priority, T item) {
+            lanes[priority].add(item);
+            scheduler.added(priority);
+            size++;
+        }
+
+        /**
+         * @return the item poll() would take, or null if there is none
+         */
+        T peek() {
+            int lane = scheduler.next();
+            return lane == -1 ? null : lanes[lane].peek();
+        }
+
+        T poll() {
+            int lane = scheduler.next();
+            if (lane == -1)
+                return null;
+            scheduler.took(lane);
+            size--;
+            return lanes[lane].poll();
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    /**
+     * Messages queued for an offline participant, in one FIFO lane per priority. Messages are
+     * taken strictly by priority, except that a lane passed over STARVATION_LIMIT times in a
+     * row while it had messages waiting gets the next turn, so bulk traffic is slowed down by
+     * urgent traffic but never stopped. Callers hold the member's pendingMutex; the queue
+     * also locks itself so it can be discarded by a thread that does not.
+     *
+     * Recent messages are kept in memory. Once the queue holds more than pendingMemberLimit
+     * bytes, or all queues together more than pendingMemoryLimit, the oldest messages of the
+     * least urgent lanes spill to a file per lane, and poll() streams them back from disk
+     * ahead of the newer ones still in memory. Only the queue being added to spills, so a
+     * queue that stops growing keeps what it holds while every growing one goes to disk.
+     */
+    class PendingQueue {
+
+        private final int participantId;
+
+        // Each lane is the messages put back by addFirst(), then the spilled ones, then the
+        // ones still in memory
+        private final Deque<Message>[] returned;
+        private final SpillFile[] spilled;
+        private final Deque<Message>[] lanes;
+        private final LaneScheduler scheduler = new LaneScheduler();
+        private int size;
+
+        // Bytes of the messages held in memory, also counted in pendingMemory
+        private long memory;
+        private boolean discarded;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        PendingQueue(int participantId) {
+            this.participantId = participantId;
+            returned = new Deque[PRIORITY_BULK + 1];
+            spilled = new SpillFile[returned.length];
+            lanes = new Deque[returned.length];
+            for (int i = 0; i < lanes.length; i++) {
+                returned[i] = new ArrayDeque<>();
+                lanes[i] = new ArrayDeque<>();
+            }
+        }
+
+        public synchronized void add(Message message) {
+            if (discarded)
+                return;
+            lanes[message.getPriority()].add(message);
+            scheduler.added(message.getPriority());
+            size++;
+            hold(message.getFootprint());
+
+            if ((pendingMemberLimit > 0 && memory > pendingMemberLimit)
+                    || (pendingMemoryLimit > 0 && pendingMemory.get() > pendingMemoryLimit))
+                spill();
+        }
+
+        /**
+         * Puts a message taken by poll() back at the front of its lane.
+         */
+        public synchronized void addFirst(Message message) {
+            if (discarded)
+                return;
+            returned[message.getPriority()].addFirst(message);
+            scheduler.added(message.getPriority());
+            size++;
+            hold(message.getFootprint());
+        }
+
+        /**
+         * @return the next message to deliver, or null if there is none
+         */
+        public synchronized Message poll() {
+            while (size > 0) {
+                int lane = scheduler.next();
+                Message message = returned[lane].poll();
+                if (message == null && spilled[lane] != null && !spilled[lane].isEmpty()) {
+                    try {
+                        message = spilled[lane].read(lane);
+                    } catch (IOException e) {
+                        // Give up on the rest of the file rather than on the whole queue
+                        int lost = spilled[lane].clear();
+                        scheduler.lost(lane, lost);
+                        size -= lost;
+                        System.out.println("Error : Lost " + lost + " spilled message(s) for participant "
+                                + participantId + ".");
+                        continue;
+                    }
+                } else {
+                    if (message == null)
+                        message = lanes[lane].poll();
+                    hold(-message.getFootprint());
+                }
+
+                scheduler.took(lane);
+                size--;
+                return message;
+            }
+            return null;
+        }
+
+        public synchronized boolean isEmpty() {
+            return size == 0;
+        }
+
+        public synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Frees the queue's memory and deletes its spill files, once it has been taken out of
+         * pendingMessages. Later calls to add() are ignored.
+         */
+        public synchronized void discard() {
+            discarded = true;
+            hold(-memory);
+            for (int i = 0; i < lanes.length; i++) {
+                returned[i].clear();
+                lanes[i].clear();
+                if (spilled[i] != null)
+                    spilled[i].delete();
+            }
+            scheduler.clear();
+            size = 0;
+        }
+
+        private void hold(long bytes) {
+            memory += bytes;
+            pendingMemory.addAndGet(bytes);
+        }
+
+        /**
+         * Moves the oldest in-memory messages to disk, least urgent lane first, until the queue
+         * is down to half its own limit and all queues are back under theirs. Messages that
+         * fail to spill stay in memory.
+         */
+        private void spill() {
+            for (int lane = lanes.length - 1; lane >= 0; lane--) {
+                List<Message> batch = new ArrayList<>();
+                long bytes = 0;
+                while (!lanes[lane].isEmpty() && overMark(bytes)) {
+                    Message message = lanes[lane].poll();
+                    batch.add(message);
+                    bytes += message.getFootprint();
+                }
+                if (batch.isEmpty())
+                    continue;
+
+                try {
+                    if (spilled[lane] == null)
+                        spilled[lane] = new SpillFile(participantId, lane);
+                    spilled[lane].append(batch);
+                    hold(-bytes);
+                    spilledMessages.addAndGet(batch.size());
+                } catch (IOException e) {
+                    for (int i = batch.size() - 1; i >= 0; i--)
+                        lanes[lane].addFirst(batch.get(i));
+                    System.out.println("Error : Failed to spill pending messages for participant "
+                            + participantId + ".");
+                    return;
+                }
+                if (!overMark(0))
+                    return;
+            }
+        }
+
+        /**
+         * @param freeing bytes about to be spilled
+         */
+        private boolean overMark(long freeing) {
+            return (pendingMemberLimit > 0 && memory - freeing > pendingMemberLimit / 2)
+                    || (pendingMemoryLimit > 0 && pendingMemory.get() - freeing > pendingMemoryLimit);
+        }
+    }
+
+    /**
+     * The spilled part of one pending lane. Records are appended at the end and read back
+     * from the front, and the file is emptied once everything in it has been read.
+     *
+     * Record: timestamp, length, deflated flag, stored length and the stored bytes.
+     */
+    class SpillFile {
+
+        private final File file;
+        private RandomAccessFile data;
+        private long readPosition;
+        private long writePosition;
+        private int count;
+
+        SpillFile(int participantId, int lane) throws IOException {
+            spillDirectory.mkdirs();
+            file = new File(spillDirectory, participantId + "-" + spillFiles.incrementAndGet()
+                    + "-" + lane + ".spill");
+            data = new RandomAccessFile(file, "rw");
+        }
+
+        void append(List<Message> messages) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            for (Message message : messages) {
+                byte[] deflated = message.getCompressed();
+                byte[] stored = deflated != null ? deflated : message.getPayload();
+                out.writeLong(message.getTimestamp());
+                out.writeInt(message.getLength());
+                out.writeBoolean(deflated != null);
+                out.writeInt(stored.length);
+                out.write(stored);
+            }
+
+            data.seek(writePosition);
+            data.write(buffer.toByteArray());
+            writePosition += buffer.size();
+            count += messages.size();
+        }
+
+        Message read(int priority) throws IOException {
+            data.seek(readPosition);
+            long timestamp = data.readLong();
+            int length = data.readInt();
+            boolean deflated = data.readBoolean();
+            byte[] stored = new byte[data.readInt()];
+            data.readFully(stored);
+            readPosition = data.getFilePointer();
+
+            // Reuse the space once the file has been read to the end
+            if (--count == 0) {
+                data.setLength(0);
+                readPosition = 0;
+                writePosition = 0;
+            }
+            return new Message(stored, deflated, length, priority, timestamp);
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        /**
+         * Drops everything not read yet.
+         *
+         * @return how many messages were dropped
+         */
+        int clear() {
+            int dropped = count;
+            count = 0;
+            readPosition = 0;
+            writePosition = 0;
+            try {
+                data.setLength(0);
+            } catch (IOException e) {
+                System.out.println("Error : Failed to truncate " + file + ".");
+            }
+            return dropped;
+        }
+
+        void delete() {
+            count = 0;
+            try {
+                data.close();
+            } catch (IOException e) {
+                // Deleting it anyway
+            }
+            if (!file.delete())
+                System.out.println("Error : Failed to delete " + file + ".");
+        }
+    }
+
+    /**
+     * The most recent multicasts, oldest first, so a new member can catch up on what was sent
+     * before it registered without anyone sending it again. Once full, each message replaces
+     * the oldest one. Guarded by membersMutex, which multicast() holds while it records a
+     * message and matches it to members.
+     */
+    class HistoryRing {
+
+        private final Message[] messages;
+        private int first;
+        private int count;
+
+        HistoryRing(int capacity) {
+            messages = new Message[capacity];
+        }
+
+        void add(Message message) {
+            if (messages.length == 0)
+                return;
+            if (count == messages.length) {
+                messages[first] = message;
+                first = (first + 1) % messages.length;
+            } else {
+                messages[(first + count) % messages.length] = message;
+                count++;
+            }
+        }
+
+        /**
+         * @param limit most messages to return, or 0 for no limit
+         * @param since earliest time to return messages from, or 0 for any
+         * @return the messages a member wants, oldest first, leaving out any past historyAge
+         */
+        List<Message> select(int id, int limit, long since) {
+            long oldest = Math.max(since, System.currentTimeMillis() - historyAge);
+            Deque<Message> selected = new ArrayDeque<>();
+
+            // Newest first, to stop at the limit
+            for (int i = count - 1; i >= 0; i--) {
+                Message message = messages[(first + i) % messages.length];
+                if (message.getTimestamp() < oldest || !subscriptions.wants(id, message))
+                    continue;
+                selected.addFirst(message);
+                if (limit > 0 && selected.size() == limit)
+                    break;
+            }
+            return new ArrayList<>(selected);
+        }
+    }
+
+    /**
+     * Finds the members a message should go to without testing every member's filters. A
+     * member with no filters gets everything. Otherwise it gets a message if any one of its
+     * filters matches:
+     *
+     * prefix:<text>   the message starts with text
+     * <key>=<value>   the message was sent with that header
+     *
+     * Prefix filters live in a trie over the UTF-8 bytes of the text, so matching walks the
+     * message once for however many members subscribed; header filters are an inverted index
+     * from key and value to members. Callers hold membersMutex.
+     */
+    class SubscriptionIndex {
+
+        private final Set<Integer> unfiltered = new HashSet<>();
+        private final TrieNode prefixes = new TrieNode();
+        private final Map<String, Set<Integer>> headers = new HashMap<>();
+
+        // Each member's filters, to take them out of the index again
+        private final Map<Integer, List<String>> filters = new HashMap<>();
+
+        /**
+         * Replaces a member's filters.
+         */
+        void subscribe(int id, List<String> memberFilters) {
+            unsubscribe(id);
+            filters.put(id, memberFilters);
+
+            boolean everything = memberFilters.isEmpty();
+            for (String filter : memberFilters) {
+                if (filter.equals("*")) {
+                    everything = true;
+                } else if (filter.startsWith("prefix:")) {
+                    prefixNode(filter.substring("prefix:".length()), true).subscribers.add(id);
+                } else if (filter.indexOf('=') > 0) {
+                    headers.computeIfAbsent(filter, key -> new HashSet<>()).add(id);
+                } else {
+                    System.out.println("Error : Ignoring malformed filter \"" + filter
+                            + "\" from participant " + id);
+                }
+            }
+            if (everything)
+                unfiltered.add(id);
+        }
+
+        void unsubscribe(int id) {
+            List<String> memberFilters = filters.remove(id);
+            unfiltered.remove(id);
+            if (memberFilters == null)
+                return;
+
+            for (String filter : memberFilters) {
+                if (filter.startsWith("prefix:")) {
+                    TrieNode node = prefixNode(filter.substring("prefix:".length()), false);
+                    if (node != null)
+                        node.subscribers.remove(id);
+                } else {
+                    Set<Integer> ids = headers.get(filter);
+                    if (ids != null) {
+                        ids.remove(id);
+                        if (ids.isEmpty())
+                            headers.remove(filter);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return ids of the members that want the message
+         */
+        Set<Integer> match(Message message) {
+            Set<Integer> recipients = new HashSet<>(unfiltered);
+
+            TrieNode node = prefixes;
+            recipients.addAll(node.subscribers);
+            if (!node.children.isEmpty()) {
+                byte[] payload = message.getPayload();
+                for (int i = 0; i < payload.length && node != null; i++) {
+                    node = node.children.get(payload[i]);
+                    if (node != null)
+                        recipients.addAll(node.subscribers);
+                }
+            }
+
+            if (message.getHeaders() != null && !headers.isEmpty()) {
+                for (Map.Entry<String, String> header : message.getHeaders().entrySet()) {
+                    Set<Integer> ids = headers.get(header.getKey() + "=" + header.getValue());
+                    if (ids != null)
+                        recipients.addAll(ids);
+                }
+            }
+            return recipients;
+        }
+
+        /**
+         * @return whether one member wants the message, going by its filters alone
+         */
+        boolean wants(int id, Message message) {
+            if (unfiltered.contains(id))
+                return true;
+            List<String> memberFilters = filters.get(id);
+            if (memberFilters == null)
+                return false;
+
+            for (String filter : memberFilters) {
+                if (filter.startsWith("prefix:")) {
+                    byte[] prefix = filter.substring("prefix:".length()).getBytes(StandardCharsets.UTF_8);
+                    byte[] payload = message.getPayload();
+                    if (payload.length >= prefix.length
+                            && Arrays.equals(payload, 0, prefix.length, prefix, 0, prefix.length))
+                        return true;
+                } else if (message.getHeaders() != null) {
+                    int split = filter.indexOf('=');
+                    if (split > 0 && filter.substring(split + 1).equals(
+                            message.getHeaders().get(filter.substring(0, split))))
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        private TrieNode prefixNode(String prefix, boolean create) {
+            TrieNode node = prefixes;
+            for (byte b : prefix.getBytes(StandardCharsets.UTF_8)) {
+                TrieNode child = node.children.get(b);
+                if (child == null) {
+                    if (!create)
+                        return null;
+                    child = new TrieNode();
+                    node.children.put(b, child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        class TrieNode {
+
+            private final Map<Byte, TrieNode> children = new HashMap<>();
+            private final Set<Integer> subscribers = new HashSet<>();
+        }
+    }
+
+    /**
+     * Token bucket for a participant's publish rate. Tokens refill continuously at the
+     * configured rate up to the burst size, and each published message takes one.
+     */
+    class TokenBucket {
+
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long lastRefill;
+
+        /**
+         * @param rate messages per second, 0 for no limit
+         * @param burst messages that may be sent at once after a quiet period
+         */
+        TokenBucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = Math.max(burst, 1);
+            this.tokens = this.burst;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /**
+         * @return whether a message may be published now, taking a token if so
+         */
+        public synchronized boolean tryAcquire() {
+            if (rate <= 0)
+                return true;
+
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+
+            if (tokens < 1)
+                return false;
+            tokens--;
+            return true;
+        }
+    }
+
+    /**
+     * A message written to a participant under a delivery sequence number.
+     */
+    class Delivery {
+
+        private long sequence;
+        private Message message;
+        private long sentAt;
+
+        Delivery(long sequence, Message message) {
+            this.sequence = sequence;
+            this.message = message;
+            this.sentAt = System.currentTimeMillis();
+        }
+
+        public long getSentAt() {
+            return sentAt;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * Deflate with per-thread codec instances, plus counters of what compression costs and
+     * saves so the threshold can be tuned against real traffic.
+     */
+    class Compression {
+
+        private final ThreadLocal<Deflater> deflaters =
+                ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+        private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+        private final AtomicLong rawBytes = new AtomicLong();
+        private final AtomicLong sentBytes = new AtomicLong();
+        private final AtomicLong deflateNanos = new AtomicLong();
+        private final AtomicLong inflateNanos = new AtomicLong();
+
+        byte[] deflate(byte[] input) {
+            long start = System.nanoTime();
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(input);
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 16);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                output.write(chunk, 0, count);
+            }
+
+            deflateNanos.addAndGet(System.nanoTime() - start);
+            return output.toByteArray();
+        }
+
+        byte[] inflate(byte[] input, int length) {
+            long start = System.nanoTime();
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(input);
+
+            byte[] output = new byte[length];
+            try {
+                int offset = 0;
+                while (offset < length && !inflater.finished())
+                    offset += inflater.inflate(output, offset, length - offset);
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupt compressed message", e);
+            }
+
+            inflateNanos.addAndGet(System.nanoTime() - start);
+            return output;
+        }
+
+        void sent(int raw, int sent) {
+            rawBytes.addAndGet(raw);
+            sentBytes.addAndGet(sent);
+        }
+
+        String report() {
+            long raw = rawBytes.get();
+            long sent = sentBytes.get();
+            long saved = raw == 0 ? 0 : 100 * (raw - sent) / raw;
+            return "Compression : " + raw + " bytes delivered as " + sent + " (" + saved + "% saved), "
+                    + deflateNanos.get() / 1000000 + " ms deflating, "
+                    + inflateNanos.get() / 1000000 + " ms inflating";
         }
     }
 }
@@ -0,0 +1,282 @@
+import com.sun.management.ThreadMXBean;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many bytes the coordinator allocates per msend. Runs a coordinator in this
+ * JVM with two multiplexed members, one sending and one receiving, and reads the JVM's
+ * per-thread allocation counters around a timed run, after a warm-up so class loading and
+ * JIT compilation wash out. Everything the coordinator's threads allocate is counted, from
+ * reading the msend to writing the delivery, split into the connection thread that read it
+ * and the rest. The benchmark's own threads are left out.
+ *
+ * Usage: java MsendBenchmark [messages] [message bytes]
+ */
+public class MsendBenchmark {
+
+    private static final int OP_REGISTER = 1;
+    private static final int OP_MSEND = 5;
+    private static final int OP_QUIT = 6;
+    private static final int OP_HEARTBEAT = 7;
+
+    private static final int SUCCESS = 0;
+    private static final int LINK_MULTIPLEXED = 1;
+
+    private static final int TAG_RESPONSE = 0;
+
+    private static final int DEFLATED = 1;
+    private static final int BATCH = 2;
+    private static final int HEARTBEAT = 3;
+
+    // msends written ahead of their replies, so a run is not bound by round trips
+    private static final int IN_FLIGHT = 64;
+
+    private static final int PUBLISHER = 1;
+    private static final int RECEIVER = 2;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        if (!(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean)) {
+            System.out.println("Error : This JVM does not count allocation per thread.");
+            System.exit(0);
+        }
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Error : This JVM does not count allocation per thread.");
+            System.exit(0);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        File config = File.createTempFile("msend-benchmark", ".txt");
+        config.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(config)) {
+            writer.println(port);
+            writer.println(60);
+        }
+
+        Thread server = new Thread(() -> Coordinator.main(new String[] {config.getPath()}));
+        server.setDaemon(true);
+        server.start();
+
+        Member receiver = new Member(port, RECEIVER);
+        receiver.register();
+        Member publisher = new Member(port, PUBLISHER);
+        publisher.register();
+
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++)
+            payload[i] = (byte) ('a' + i % 26);
+
+        run(publisher, receiver, payload, messages);
+
+        Map<Long, Long> before = allocated(threads, receiver, publisher);
+        long start = System.nanoTime();
+        run(publisher, receiver, payload, messages);
+        long elapsed = System.nanoTime() - start;
+        Map<Long, Long> after = allocated(threads, receiver, publisher);
+
+        long connection = 0;
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            Long from = before.get(thread.getId());
+            Long to = after.get(thread.getId());
+            if (from == null || to == null)
+                continue;
+            total += to - from;
+            if (thread instanceof Coordinator.CoordinatorThread)
+                connection += to - from;
+        }
+
+        System.out.println(messages + " msend(s) of " + size + " byte(s) in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+        System.out.println("Coordinator: " + total / messages + " byte(s) allocated per msend, "
+                + connection / messages + " of them by connection threads");
+
+        publisher.quit();
+        receiver.quit();
+
+        // The coordinator keeps its state in the working directory
+        File[] state = new File(".").listFiles((dir, name) -> name.startsWith("coordinator-" + port + "."));
+        if (state != null) {
+            for (File file : state)
+                file.delete();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Sends messages up to IN_FLIGHT ahead of their replies, then waits until the receiver
+     * has had them all. Nothing is rate limited, so every msend is taken. The receiver sends
+     * nothing else, so it heartbeats in between to stay connected.
+     */
+    private static void run(Member publisher, Member receiver, byte[] payload, int messages)
+            throws Exception {
+        long target = receiver.delivered.get() + messages;
+        for (int i = 0; i < messages; i++) {
+            publisher.out.writeInt(OP_MSEND);
+            publisher.out.writeInt(SUCCESS);
+            publisher.out.writeInt(payload.length);
+            publisher.out.write(payload);
+            publisher.out.writeInt(1);
+            publisher.out.writeInt(0);
+            if (i >= IN_FLIGHT)
+                publisher.accepted();
+            receiver.heartbeat();
+        }
+        for (int i = 0; i < Math.min(messages, IN_FLIGHT); i++)
+            publisher.accepted();
+
+        long deadline = System.currentTimeMillis() + 60 * 1000;
+        while (receiver.delivered.get() < target) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException("Deliveries did not arrive");
+            receiver.heartbeat();
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @return bytes allocated so far by every live thread but the members' own, by thread id
+     */
+    private static Map<Long, Long> allocated(ThreadMXBean threads, Member... members) {
+        Map<Long, Long> allocated = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread == Thread.currentThread())
+                continue;
+            boolean own = false;
+            for (Member member : members)
+                own |= thread == member.reader;
+            if (!own)
+                allocated.put(thread.getId(), threads.getThreadAllocatedBytes(thread.getId()));
+        }
+        return allocated;
+    }
+
+    /**
+     * A member on a multiplexed connection, with a thread that counts its deliveries and
+     * hands command responses back.
+     */
+    private static class Member {
+
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final BlockingQueue<Integer> responses = new LinkedBlockingQueue<>();
+        private final AtomicLong delivered = new AtomicLong();
+        private final Thread reader;
+        private long lastHeartbeat;
+
+        Member(int port, int id) throws Exception {
+            Socket socket = null;
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (socket == null) {
+                try {
+                    socket = new Socket("127.0.0.1", port);
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() > deadline)
+                        throw e;
+                    Thread.sleep(50);
+                }
+            }
+            // Each msend waits for its replies, which Nagle's algorithm would hold back
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            out.writeInt(id);
+            out.writeInt(LINK_MULTIPLEXED);
+            out.flush();
+
+            // Heartbeat interval and delivery mode
+            in.readInt();
+            in.readInt();
+
+            reader = new Thread(this::read);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void register() throws Exception {
+            out.writeInt(OP_REGISTER);
+            out.writeInt(SUCCESS);
+            out.writeUTF("127.0.0.1");
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeLong(0);
+            out.writeInt(SUCCESS);
+            out.flush();
+        }
+
+        void heartbeat() throws IOException {
+            long now = System.currentTimeMillis();
+            if (now - lastHeartbeat < 1000)
+                return;
+            lastHeartbeat = now;
+            out.writeInt(OP_HEARTBEAT);
+            out.flush();
+        }
+
+        void quit() throws IOException {
+            out.writeInt(OP_QUIT);
+            out.flush();
+        }
+
+        /**
+         * Waits for the two replies to the oldest msend not yet accepted.
+         */
+        void accepted() throws Exception {
+            out.flush();
+            if (responses.take() != SUCCESS || responses.take() != SUCCESS)
+                throw new IOException("msend refused");
+        }
+
+        private void read() {
+            try {
+                while (true) {
+                    if (in.readInt() == TAG_RESPONSE) {
+                        responses.add(in.readInt());
+                        continue;
+                    }
+
+                    int status = in.readInt();
+                    if (status == HEARTBEAT)
+                        continue;
+                    in.readLong();
+                    if (status == BATCH) {
+                        delivered.addAndGet(in.readInt());
+                        in.readInt();
+                    } else {
+                        if (status == DEFLATED)
+                            in.readInt();
+                        delivered.incrementAndGet();
+                    }
+                    in.skipNBytes(in.readInt());
+                }
+            } catch (IOException e) {
+                // Connection closed
+            }
+        }
+    }
+}
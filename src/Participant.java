@@ -4,8 +4,22 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * @author Carter Hart, Sahisnu Nimmakayalu, James Griffin
@@ -24,9 +38,78 @@ public class Participant {
     private String coordIp;
     private String logFileName;
 
+    // Receive deliveries on the command connection instead of a listening port
+    private boolean multiplexed;
+
+    // Heartbeat interval the coordinator asked for when we connected, in milliseconds. A link
+    // that stays silent for IDLE_HEARTBEATS intervals is considered dead.
+    private volatile int heartbeatInterval;
+    private static final int IDLE_HEARTBEATS = 3;
+
+    // Whether the coordinator wants deliveries acknowledged, and how long to gather them into
+    // a single cumulative acknowledgement, in milliseconds
+    private volatile boolean acknowledging;
+    private static final int ACK_DELAY = 50;
+
+    // Received messages, in segmented binary form next to the text log name
+    private MessageLog messageLog;
+
+    // Sequence number of the last message durably written to the log, kept in <log>.cursor
+    private RandomAccessFile cursorFile;
+    private volatile long receivedSequence;
+
+    // Sequence number of the last message written to the log, ahead of receivedSequence
+    // until the next group commit makes it durable
+    private volatile long loggedSequence;
+
+    // Most delivery frames logged before the log is synced and the cursor saved
+    private static final int SYNC_FRAMES = 64;
+
     private static final int SUCCESS = 0;
     private static final int ERROR = -1;
     private static final int QUIT = -2;
+    private static final int RATE_LIMITED = -3;
+
+    // Delivery frames that carry a deflated message, or a deflated batch of messages
+    private static final int DEFLATED = 1;
+    private static final int BATCH = 2;
+
+    // Delivery frame with no message, sent on quiet links
+    private static final int HEARTBEAT = 3;
+
+    // Message priorities, most urgent first
+    private static final int PRIORITY_HIGH = 0;
+    private static final int PRIORITY_NORMAL = 1;
+    private static final int PRIORITY_BULK = 2;
+
+    // Delivery modes the coordinator can ask for
+    private static final int DELIVERY_AT_LEAST_ONCE = 1;
+
+    // Codecs this participant can decode, advertised on register and reconnect
+    private static final int CODEC_DEFLATE = 1;
+
+    // Link modes sent when connecting. When multiplexed, everything the coordinator writes on
+    // the command connection is tagged as a command response or a delivery.
+    private static final int LINK_SEPARATE = 0;
+    private static final int LINK_MULTIPLEXED = 1;
+    private static final int TAG_RESPONSE = 0;
+    private static final int TAG_DELIVERY = 1;
+
+    // Commands to the coordinator, sent as an opcode ahead of their arguments
+    private static final int OP_REGISTER = 1;
+    private static final int OP_DEREGISTER = 2;
+    private static final int OP_DISCONNECT = 3;
+    private static final int OP_RECONNECT = 4;
+    private static final int OP_MSEND = 5;
+    private static final int OP_QUIT = 6;
+    private static final int OP_HEARTBEAT = 7;
+    private static final int OP_ACK = 8;
+
+    // Longest message the coordinator accepts, in UTF-8 bytes
+    private static final int MAX_MESSAGE_LENGTH = 65535;
+
+    // Queued in place of a response when the multiplexed connection drops
+    private static final int LINK_LOST = Integer.MIN_VALUE;
 
     public static void main(String[] args) {
 
@@ -42,7 +125,7 @@ public class Participant {
      * running Participant.java. Creates a participant object based on the
      * config-file contents. The first line is the participantId of participant, second
      * line is logfile name, and third line is IP address and port number of the
-     * coordinator.
+     * coordinator. Any following lines are optional "name value" settings.
      *
      * @param fileName txt file of the participant configuration.
      * @throws FileNotFoundException if the config file cannot be found
@@ -91,6 +174,13 @@ public class Participant {
 
             // sets the port number for participant
             coordPort = Integer.valueOf(portStr);
+
+            while (partConfig.hasNextLine()) {
+                String line = partConfig.nextLine().trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                parseConfigOption(line.split("\\s+"));
+            }
         }
 
         File logFile = new File(logFileName);
@@ -99,6 +189,43 @@ public class Participant {
         } catch (IOException e) {
             System.out.println("Error : Failed to create log file.");
         }
+
+        try {
+            messageLog = new MessageLog(logFileName);
+        } catch (IOException e) {
+            System.out.println("Error : Failed to open message log.");
+            System.exit(0);
+        }
+
+        try {
+            cursorFile = new RandomAccessFile(new File(logFileName + ".cursor"), "rwd");
+            if (cursorFile.length() >= 8)
+                receivedSequence = cursorFile.readLong();
+        } catch (IOException e) {
+            System.out.println("Error : Failed to open cursor file.");
+        }
+        loggedSequence = receivedSequence;
+    }
+
+    private void parseConfigOption(String[] option) {
+        switch (option[0].toLowerCase()) {
+            case "link":
+                multiplexed = option.length > 1 && option[1].equalsIgnoreCase("multiplexed");
+                break;
+            default:
+                System.out.println("Error : Unrecognized config option \"" + option[0] + "\"");
+                break;
+        }
+    }
+
+    /**
+     * Records the sequence number of the last message durably written to the log. The
+     * coordinator resumes delivery after it on reconnect.
+     */
+    private synchronized void saveCursor(long sequence) throws IOException {
+        receivedSequence = sequence;
+        cursorFile.seek(0);
+        cursorFile.writeLong(sequence);
     }
 
     public Participant(String configFile) {
@@ -132,11 +259,28 @@ public class Participant {
 
         private CoordListener listenerThread;
 
+        // Command responses, when a MultiplexReader is demultiplexing the connection
+        private BlockingQueue<Integer> responses;
+
+        // Held for a whole command exchange, so heartbeats only go out in between
+        private final Object commandMutex = new Object();
+        private long lastSent;
+        private boolean closed;
+
         CommandThread() {
 
             online = false;
             registered = false;
 
+            connectToCoordinator();
+        }
+
+        /**
+         * Opens the command connection to the coordinator, retrying once a second. Also used to
+         * re-dial after the coordinator restarts, since it keeps our membership across restarts.
+         */
+        private void connectToCoordinator() {
+
             int attempts = 0;
             while (true) {
 
@@ -145,11 +289,24 @@ public class Participant {
 
                     // Get socket connection
                     coordSock = new Socket(coordIp, coordPort);
-                    out = new DataOutputStream(coordSock.getOutputStream());
-                    in = new DataInputStream(coordSock.getInputStream());
+                    // Buffered, so a command goes out in one write when it is flushed
+                    out = new DataOutputStream(new BufferedOutputStream(coordSock.getOutputStream()));
+                    in = new DataInputStream(new BufferedInputStream(coordSock.getInputStream()));
 
                     // Set participantId for Coordinator Thread
                     out.writeInt(participantId);
+                    out.writeInt(multiplexed ? LINK_MULTIPLEXED : LINK_SEPARATE);
+                    out.flush();
+                    heartbeatInterval = in.readInt();
+                    acknowledging = in.readInt() == DELIVERY_AT_LEAST_ONCE;
+                    lastSent = System.currentTimeMillis();
+
+                    if (multiplexed) {
+                        coordSock.setSoTimeout(IDLE_HEARTBEATS * heartbeatInterval);
+                        responses = new LinkedBlockingQueue<>();
+                        MultiplexReader reader = new MultiplexReader(in, responses);
+                        reader.start();
+                    }
 
                     break;
                 } catch (IOException e) {
@@ -178,6 +335,13 @@ public class Participant {
             Scanner in = new Scanner(System.in);
             String input;
 
+            Thread heartbeats = new Thread(this::sendHeartbeats);
+            heartbeats.setDaemon(true);
+            heartbeats.start();
+            Thread acks = new Thread(this::sendAcks);
+            acks.setDaemon(true);
+            acks.start();
+
             // Until break...
             boolean running = true;
             while (running) {
@@ -192,8 +356,20 @@ public class Participant {
 
                     String command = tokens[0].toLowerCase();
 
+                    // Queries on the local message log never reach the coordinator
+                    if (query(command, tokens))
+                        continue;
+
+                    int opcode = opcode(command);
+                    if (opcode == ERROR) {
+                        System.out.println("Invalid command \"" + command + "\"");
+                        continue;
+                    }
+
+                    synchronized (commandMutex) {
                     try {
-                        out.writeUTF(command);
+                        lastSent = System.currentTimeMillis();
+                        out.writeInt(opcode);
                         switch (command) {
                             case "register":
                                 register(tokens);
@@ -215,13 +391,16 @@ public class Participant {
                                 if (listenerThread != null) listenerThread.shutdown();
                                 running = false;
                                 break;
-                            default:
-                                System.out.println("Invalid command \"" + command + "\"");
-                                break;
                         }
+
+                        // Some commands end without a response to wait for
+                        out.flush();
                     } catch (IOException e) {
                         e.printStackTrace();
                         System.out.println("\nError : Communication with coordinator failed.");
+                        if (running)
+                            redial();
+                    }
                     }
                 }
             }
@@ -231,6 +410,190 @@ public class Participant {
             System.out.println("\nGoodbye.");
         }
 
+        /**
+         * @return the opcode for a command, or ERROR if the coordinator has no such command
+         */
+        private int opcode(String command) {
+            switch (command) {
+                case "register":
+                    return OP_REGISTER;
+                case "deregister":
+                    return OP_DEREGISTER;
+                case "disconnect":
+                    return OP_DISCONNECT;
+                case "reconnect":
+                    return OP_RECONNECT;
+                case "msend":
+                    return OP_MSEND;
+                case "quit":
+                case "exit":
+                    return OP_QUIT;
+                default:
+                    return ERROR;
+            }
+        }
+
+        /**
+         * Sends what the current command has written so far and reads the coordinator's answer.
+         */
+        private int readResponse() throws IOException {
+            out.flush();
+            if (!multiplexed)
+                return in.readInt();
+
+            try {
+                Integer response = responses.take();
+                if (response == null || response == LINK_LOST)
+                    throw new IOException("Connection to coordinator lost");
+                return response;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Sends a heartbeat whenever no command has gone to the coordinator for a heartbeat
+         * interval, so it can tell a quiet participant from a dead one. Re-dials when the
+         * connection turns out to be gone.
+         */
+        private void sendHeartbeats() {
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(heartbeatInterval / 2, 100));
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                synchronized (commandMutex) {
+                    if (closed)
+                        return;
+                    if (System.currentTimeMillis() - lastSent < heartbeatInterval)
+                        continue;
+
+                    try {
+                        lastSent = System.currentTimeMillis();
+                        out.writeInt(OP_HEARTBEAT);
+                        out.flush();
+                        if (coordSock.isClosed())
+                            throw new IOException("Connection to coordinator closed");
+                    } catch (IOException e) {
+                        System.out.println("\nError : Lost connection to coordinator.");
+                        redial();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Acknowledges deliveries when the coordinator asked for it. Every ACK_DELAY, sends
+         * the durable cursor if it moved, so a burst of deliveries costs one acknowledgement.
+         * A failed write is left to the heartbeats to notice.
+         */
+        private void sendAcks() {
+            long acked = receivedSequence;
+            while (true) {
+                try {
+                    Thread.sleep(ACK_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long received = receivedSequence;
+                if (!acknowledging || !online || received == acked)
+                    continue;
+
+                synchronized (commandMutex) {
+                    if (closed)
+                        return;
+                    try {
+                        lastSent = System.currentTimeMillis();
+                        out.writeInt(OP_ACK);
+                        out.writeLong(received);
+                        out.flush();
+                        acked = received;
+                    } catch (IOException e) {
+                        //
+                    }
+                }
+            }
+        }
+
+        /**
+         * Re-opens the command connection. The coordinator took us offline when the old one
+         * dropped, so reconnect to pick up where we left off. Caller must hold commandMutex.
+         */
+        private void redial() {
+            closeCoordinatorConnection();
+            connectToCoordinator();
+
+            if (!online)
+                return;
+
+            online = false;
+            if (!multiplexed && (listenerThread == null || !listenerThread.isRunning())) {
+                System.out.println("Error : Listener is gone, reconnect with a new port.");
+                return;
+            }
+
+            try {
+                out.writeInt(OP_RECONNECT);
+                if (requestReconnect(multiplexed ? 0 : listenerThread.getListenPort(), null) == SUCCESS)
+                    online = true;
+            } catch (IOException e) {
+                System.out.println("Error : Failed to reconnect to coordinator.");
+            }
+        }
+
+        /**
+         * Answers the local message log commands:
+         *   tail [count]            the last count messages received, 10 by default
+         *   history <from> <to>     messages received between two times, given as epoch
+         *                           milliseconds or as yyyy-MM-ddTHH:mm:ss
+         *   export [file]           writes the log as text, to the configured log file by default
+         *
+         * @return false if the command is not a query
+         */
+        private boolean query(String command, String[] args) {
+            try {
+                switch (command) {
+                    case "tail":
+                        int count = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+                        printMessages(messageLog.tail(count));
+                        return true;
+                    case "history":
+                        if (args.length != 3) {
+                            System.out.println("Error : Expected a from and to time.");
+                            return true;
+                        }
+                        printMessages(messageLog.range(parseTime(args[1]), parseTime(args[2])));
+                        return true;
+                    case "export":
+                        String file = args.length > 1 ? args[1] : logFileName;
+                        System.out.println("Exported " + messageLog.export(file) + " message(s) to " + file);
+                        return true;
+                    default:
+                        return false;
+                }
+            } catch (NumberFormatException | java.time.format.DateTimeParseException e) {
+                System.out.println("Error : Invalid query argument.");
+            } catch (IOException e) {
+                System.out.println("Error : Failed to read message log.");
+            }
+            return true;
+        }
+
+        private long parseTime(String time) {
+            if (time.chars().allMatch(Character::isDigit))
+                return Long.parseLong(time);
+            return LocalDateTime.parse(time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+
+        private void printMessages(List<MessageLog.Entry> entries) {
+            for (MessageLog.Entry entry : entries)
+                System.out.println(entry);
+            System.out.println(entries.size() + " message(s)");
+        }
+
         /**
          * Register
          * Participant must register with coordinator before being allowed to connect. The
@@ -238,6 +601,8 @@ public class Participant {
          * receive multicast messages from the Coordinator. The listening thread must be operational
          * before sending the message to the coordinator. Upon successful registration, the
          * participant becomes a member of the multicast group and will begin receiving messages.
+         * With -last <count> or -since <time> it first receives that much of the coordinator's
+         * history of recent messages.
          *
          * @param args The arguments to register command
          */
@@ -249,8 +614,35 @@ public class Participant {
                 return;
             }
 
-            if (args.length != 2) {
-                System.out.println("Error : Expected a single port number argument.");
+            if (!multiplexed && args.length < 2) {
+                System.out.println("Error : Expected a port number argument, then any filters.");
+                out.writeInt(ERROR);
+                return;
+            }
+
+            // Optional "-last <count>" and "-since <time>" ahead of the filters
+            int from = multiplexed ? 1 : 2;
+            int replayCount = 0;
+            long replaySince = 0;
+            try {
+                while (from + 1 < args.length && (args[from].equals("-last") || args[from].equals("-since"))) {
+                    if (args[from].equals("-last"))
+                        replayCount = Integer.parseInt(args[from + 1]);
+                    else
+                        replaySince = parseTime(args[from + 1]);
+                    from += 2;
+                }
+            } catch (NumberFormatException | java.time.format.DateTimeParseException e) {
+                replayCount = -1;
+            }
+            if (replayCount < 0) {
+                System.out.println("Error : Expected -last <count> or -since <time>.");
+                out.writeInt(ERROR);
+                return;
+            }
+
+            List<String> filters = parseFilters(args, from);
+            if (filters == null) {
                 out.writeInt(ERROR);
                 return;
             }
@@ -259,10 +651,28 @@ public class Participant {
 
             // out.writeInt(participantId);
             out.writeUTF(participantIp);
-            out.writeInt(Integer.parseInt(args[1]));
+            out.writeInt(multiplexed ? 0 : Integer.parseInt(args[1]));
+            out.writeInt(CODEC_DEFLATE);
+            writeFilters(filters);
+            out.writeInt(replayCount);
+            out.writeLong(replaySince);
+
+            // A new membership numbers its deliveries from the start
+            loggedSequence = 0;
+            saveCursor(0);
+
+            // The coordinator dials our listener as soon as it has these, and the listener
+            // waits for that call before we go on
+            out.flush();
 
+            if (multiplexed) {
+                registered = true;
+                online = true;
+                out.writeInt(SUCCESS);
+                return;
+            }
 
-            listenerThread = new CoordListener(logFileName, Integer.parseInt(args[1]));
+            listenerThread = new CoordListener(Integer.parseInt(args[1]));
             if (listenerThread.isRunning()) {
                 listenerThread.start();
                 registered = true;
@@ -291,7 +701,8 @@ public class Participant {
 
             online = false;
             registered = false;
-            listenerThread.shutdown();
+            if (listenerThread != null)
+                listenerThread.shutdown();
         }
 
         /**
@@ -315,7 +726,8 @@ public class Participant {
             out.writeInt(SUCCESS);
 
             online = false;
-            listenerThread.shutdown();
+            if (listenerThread != null)
+                listenerThread.shutdown();
         }
 
         /**
@@ -330,11 +742,16 @@ public class Participant {
          */
         private void reconnect(String[] args) throws IOException {
 
-            if (args.length != 2) {
-                System.out.println("Error : Expected a single port number argument.");
+            List<String> filters = parseFilters(args, multiplexed ? 1 : 2);
+            if (!multiplexed && args.length < 2) {
+                System.out.println("Error : Expected a port number argument, then any filters.");
+                out.writeInt(ERROR);
+                return;
+            } else if (filters == null) {
                 out.writeInt(ERROR);
                 return;
-            } else if (!registered) {
+            } else if (!registered && receivedSequence == 0) {
+                // After a restart a cursor means we may still be a member, the coordinator decides
                 System.out.println("Error : Must be registered to connect.");
                 out.writeInt(ERROR);
                 return;
@@ -344,25 +761,51 @@ public class Participant {
                 return;
             }
 
-            out.writeInt(SUCCESS);
-            out.writeInt(Integer.parseInt(args[1]));
-
-            // System.out.println("send data...");
-
             // Check if reconnect was successful
-            int status = in.readInt();
+            // Without filters the coordinator keeps the ones we had
+            int status = requestReconnect(multiplexed ? 0 : Integer.parseInt(args[1]),
+                    filters.isEmpty() ? null : filters);
             if (status != SUCCESS) {
                 System.out.println("Error : Coordinator failed to reconnect.");
                 return;
             }
 
-            listenerThread = new CoordListener(logFileName, Integer.parseInt(args[1]));
+            // Deliveries resume on this connection, a single round trip
+            if (multiplexed) {
+                registered = true;
+                online = true;
+                return;
+            }
+
+            listenerThread = new CoordListener(Integer.parseInt(args[1]));
             if (listenerThread.isRunning()) {
                 listenerThread.start();
+                registered = true;
                 online = true;
             }
         }
 
+        /**
+         * Sends the body of a reconnect command, with the durable cursor to resume from.
+         *
+         * @param filters new filters, or null to keep the current ones
+         * @return the coordinator's answer
+         */
+        private int requestReconnect(int port, List<String> filters) throws IOException {
+            out.writeInt(SUCCESS);
+            out.writeInt(port);
+            out.writeInt(CODEC_DEFLATE);
+            out.writeLong(receivedSequence);
+            if (filters == null)
+                out.writeInt(-1);
+            else
+                writeFilters(filters);
+
+            // System.out.println("send data...");
+
+            return readResponse();
+        }
+
         /**
          * Multicast Send
          * Send a multicast message to all current members of the multicast group. The message sent is an
@@ -374,6 +817,9 @@ public class Participant {
         private void msend(String input) throws IOException {
 
             String message;
+            byte[] payload;
+            int priority = PRIORITY_NORMAL;
+            List<String> headers = new ArrayList<>();
 
             if (!registered) {
                 System.out.println("Error : Participant is not registered, cannot send multicast.");
@@ -390,27 +836,109 @@ public class Participant {
                     out.writeInt(ERROR);
                     return;
                 }
+
+                // Optional "-p high|normal|bulk" and "-h key=value" ahead of the message
+                while (message.startsWith("-p ") || message.startsWith("-h ")) {
+                    String[] parts = message.split(" ", 3);
+                    boolean valid = parts.length == 3;
+                    if (parts[0].equals("-p")) {
+                        priority = parsePriority(parts[1]);
+                        valid &= priority != ERROR;
+                    } else {
+                        headers.add(parts[1]);
+                        valid &= parts[1].indexOf('=') > 0;
+                    }
+                    if (!valid) {
+                        System.out.println("Error : Expected msend [-p high|normal|bulk] [-h key=value]... <message>.");
+                        out.writeInt(ERROR);
+                        return;
+                    }
+                    message = parts[2];
+                }
+
+                payload = message.getBytes(StandardCharsets.UTF_8);
+                if (payload.length > MAX_MESSAGE_LENGTH) {
+                    System.out.println("Error : Message is longer than " + MAX_MESSAGE_LENGTH + " bytes.");
+                    out.writeInt(ERROR);
+                    return;
+                }
                 out.writeInt(SUCCESS);
             }
 
-            int status = in.readInt();
+            int status = readResponse();
             if (status == ERROR) {
                 System.out.println("Error : Participant is not registered");
                 return;
+            } else if (status == RATE_LIMITED) {
+                System.out.println("Error : Sending too fast, message was not multicast.");
+                return;
             }
 
-            out.writeUTF(message);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt(priority);
+            out.writeInt(headers.size());
+            for (String header : headers) {
+                int split = header.indexOf('=');
+                out.writeUTF(header.substring(0, split));
+                out.writeUTF(header.substring(split + 1));
+            }
 
-            status = in.readInt();
+            status = readResponse();
             if (status != SUCCESS) {
                 System.out.println("Error : Coordinator failed to multicast.");
             }
         }
 
+        /**
+         * Reads subscription filters from command arguments: prefix:<text> for messages that
+         * start with text, key=value for messages sent with that header, or * for everything.
+         *
+         * @return the filters, or null if one is malformed
+         */
+        private List<String> parseFilters(String[] args, int from) {
+            List<String> filters = new ArrayList<>();
+            for (int i = from; i < args.length; i++) {
+                String filter = args[i];
+                if (!filter.equals("*") && !filter.startsWith("prefix:") && filter.indexOf('=') <= 0) {
+                    System.out.println("Error : Expected filters like prefix:<text>, key=value or *.");
+                    return null;
+                }
+                filters.add(filter);
+            }
+            return filters;
+        }
+
+        private void writeFilters(List<String> filters) throws IOException {
+            out.writeInt(filters.size());
+            for (String filter : filters)
+                out.writeUTF(filter);
+        }
+
+        private int parsePriority(String name) {
+            switch (name) {
+                case "high":
+                    return PRIORITY_HIGH;
+                case "normal":
+                    return PRIORITY_NORMAL;
+                case "bulk":
+                    return PRIORITY_BULK;
+                default:
+                    return ERROR;
+            }
+        }
+
         private void shutdown() {
             // System.out.println("Shutting down participant.");
+            synchronized (commandMutex) {
+                closed = true;
+            }
             if (listenerThread != null)
                 listenerThread.shutdown();
+            closeCoordinatorConnection();
+        }
+
+        private void closeCoordinatorConnection() {
             try {
                 in.close();
                 out.close();
@@ -422,12 +950,155 @@ public class Participant {
     }
 
 
+    /**
+     * Decodes delivery frames and logs the messages they carry.
+     */
+    private class DeliveryReader {
+
+        private Inflater inflater = new Inflater();
+
+        // Frames logged since the last commit
+        private int unsynced;
+
+        /**
+         * Reads the rest of a delivery frame whose status has already been read.
+         *
+         * @return false if the coordinator asked us to stop listening
+         */
+        boolean read(DataInputStream in, int status) throws IOException {
+            long sequence;
+            if (status == HEARTBEAT) {
+                // The link is quiet, nothing is gained by holding back
+                commit();
+                return true;
+            } else if (status == SUCCESS) {
+                sequence = in.readLong();
+                logMessage(sequence, readBytes(in));
+            } else if (status == DEFLATED) {
+                sequence = in.readLong();
+                int length = in.readInt();
+                logMessage(sequence, inflate(readBytes(in), length));
+            } else if (status == BATCH) {
+                sequence = in.readLong();
+                int count = in.readInt();
+                int length = in.readInt();
+                DataInputStream batch = new DataInputStream(
+                        new ByteArrayInputStream(inflate(readBytes(in), length)));
+                for (int i = 0; i < count; i++) {
+                    byte[] message = new byte[batch.readInt()];
+                    batch.readFully(message);
+                    logMessage(sequence + i, message);
+                }
+            } else {
+                commit();
+                return false;
+            }
+
+            // One sync covers every frame that arrived together, and at most SYNC_FRAMES
+            // of a long burst
+            if (++unsynced >= SYNC_FRAMES || in.available() == 0)
+                commit();
+            return true;
+        }
+
+        /**
+         * Syncs the log and advances the cursor over everything logged since the last
+         * commit. The cursor only moves once the log is on disk, so a crash in between
+         * means the coordinator sends those messages again rather than losing them.
+         */
+        void commit() throws IOException {
+            unsynced = 0;
+            long logged = loggedSequence;
+            if (logged > receivedSequence) {
+                messageLog.sync();
+                saveCursor(logged);
+            }
+        }
+
+        private byte[] readBytes(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private byte[] inflate(byte[] compressed, int length) throws IOException {
+            inflater.reset();
+            inflater.setInput(compressed);
+
+            byte[] bytes = new byte[length];
+            try {
+                int offset = 0;
+                while (offset < length && !inflater.finished())
+                    offset += inflater.inflate(bytes, offset, length - offset);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed message from coordinator", e);
+            }
+            return bytes;
+        }
+
+        private void logMessage(long sequence, byte[] message) throws IOException {
+
+            // Already logged before a reconnect, the coordinator could not know
+            if (sequence <= loggedSequence)
+                return;
+
+            messageLog.append(System.currentTimeMillis(), message);
+            loggedSequence = sequence;
+        }
+    }
+
+    /**
+     * Reads a multiplexed command connection, logging deliveries and handing command
+     * responses to the command thread.
+     */
+    private class MultiplexReader extends Thread {
+
+        private DeliveryReader deliveries = new DeliveryReader();
+        private DataInputStream in;
+        private BlockingQueue<Integer> responses;
+
+        MultiplexReader(DataInputStream in, BlockingQueue<Integer> responses) {
+            this.in = in;
+            this.responses = responses;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    int tag = in.readInt();
+                    if (tag == TAG_RESPONSE) {
+                        responses.add(in.readInt());
+                    } else {
+                        // A stop request only ends the delivery stream, not the connection
+                        deliveries.read(in, in.readInt());
+                    }
+                }
+            } catch (IOException e) {
+                try {
+                    deliveries.commit();
+                } catch (IOException ignored) {
+                    //
+                }
+
+                // Closing the connection lets the next heartbeat notice and re-dial
+                responses.add(LINK_LOST);
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                    //
+                }
+            }
+        }
+    }
+
     /**
      * Listens to the Coordinator for multicast messages.
      */
     private class CoordListener extends Thread implements Runnable {
 
-        private String fileName;
+        private DeliveryReader deliveries = new DeliveryReader();
         private DataInputStream in;
         private ServerSocket socket;
         private Socket multicastSocket;
@@ -437,8 +1108,7 @@ public class Participant {
 
         // private ArrayList<String> pendingMessages;
 
-        CoordListener(String file, int port) {
-            fileName = file;
+        CoordListener(int port) {
             listenPort = port;
             running = true;
             listenForCoordinator();
@@ -447,33 +1117,43 @@ public class Participant {
         @Override
         public void run() {
             try {
-
-                RandomAccessFile file = new RandomAccessFile(new File(fileName), "rw");
-                file.seek(file.length());
-                file.writeBytes("************************************************************\n");
-
-                Date date;
                 while (running) {
 
-                    int status = in.readInt();
-                    if (status != SUCCESS)
+                    int status;
+                    try {
+                        status = in.readInt();
+                    } catch (IOException e) {
+                        // Coordinator went away without a QUIT, e.g. it restarted, or went
+                        // silent. Wait for it to open a new delivery link.
+                        deliveries.commit();
+                        if (!running || !acceptCoordinator())
+                            break;
+                        continue;
+                    }
+                    if (!deliveries.read(in, status))
                         break;
-
-                    String msg = in.readUTF();
-
-                    date = new Date();
-                    msg = date.toString() + " : " + msg + "\n";
-
-                    file.writeBytes(msg);
-                    file.seek(file.length());
                 }
-                file.seek(file.length());
-                file.close();
             } catch(IOException e) {
                 e.printStackTrace();
             }
         }
 
+        private boolean acceptCoordinator() {
+            try {
+                multicastSocket.close();
+                multicastSocket = socket.accept();
+                multicastSocket.setSoTimeout(IDLE_HEARTBEATS * heartbeatInterval);
+                in = new DataInputStream(new BufferedInputStream(multicastSocket.getInputStream()));
+
+                // Tell the coordinator where to resume from
+                DataOutputStream out = new DataOutputStream(multicastSocket.getOutputStream());
+                out.writeLong(receivedSequence);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
         private void listenForCoordinator() {
 
             try {
@@ -494,7 +1174,8 @@ public class Participant {
 
             try {
                 multicastSocket = socket.accept();
-                in = new DataInputStream(multicastSocket.getInputStream());
+                multicastSocket.setSoTimeout(IDLE_HEARTBEATS * heartbeatInterval);
+                in = new DataInputStream(new BufferedInputStream(multicastSocket.getInputStream()));
             } catch (IOException e) {
                 System.out.println("\nError : Error connecting to coordinator.");
                 running = false;
@@ -516,5 +1197,376 @@ public class Participant {
         public boolean isRunning() {
             return running;
         }
+
+        public int getListenPort() {
+            return listenPort;
+        }
+    }
+
+    /**
+     * Append-only log of received messages, split into segment files of at most SEGMENT_SIZE
+     * bytes named <log>.<first record>.seg. A record is its record number, receive time,
+     * length and UTF-8 text. Every INDEX_INTERVAL-th record of a segment is entered in a
+     * sparse index, kept in memory and in <segment>.idx, so a lookup by record number or time
+     * is a binary search followed by a short scan of a memory-mapped segment.
+     *
+     * Time lookups assume receive times do not go backwards.
+     */
+    private class MessageLog {
+
+        private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+        private static final int INDEX_INTERVAL = 64;
+        private static final int RECORD_HEADER = 20;
+        private static final int INDEX_ENTRY = 24;
+
+        private String baseName;
+        private List<Segment> segments = new ArrayList<>();
+        private long nextRecord;
+
+        private FileChannel active;
+        private FileChannel activeIndex;
+
+        /**
+         * Opens the log, truncating a torn record at the end of the last segment.
+         */
+        MessageLog(String baseName) throws IOException {
+            this.baseName = baseName;
+
+            File base = new File(baseName).getAbsoluteFile();
+            String prefix = base.getName() + ".";
+            File[] files = base.getParentFile().listFiles(
+                    (dir, name) -> name.startsWith(prefix) && name.endsWith(".seg"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    String first = file.getName().substring(prefix.length(), file.getName().length() - 4);
+                    try {
+                        segments.add(new Segment(file, Long.parseLong(first)));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+
+            for (int i = 0; i < segments.size() - 1; i++)
+                segments.get(i).loadIndex();
+
+            if (segments.isEmpty()) {
+                roll();
+            } else {
+                Segment last = segments.get(segments.size() - 1);
+                nextRecord = last.recover();
+                active = FileChannel.open(last.file.toPath(), StandardOpenOption.WRITE);
+                activeIndex = FileChannel.open(last.indexFile.toPath(), StandardOpenOption.WRITE);
+                activeIndex.position(activeIndex.size());
+            }
+        }
+
+        synchronized void append(long timestamp, byte[] message) throws IOException {
+            Segment segment = segments.get(segments.size() - 1);
+            if (segment.size > 0 && segment.size + RECORD_HEADER + message.length > SEGMENT_SIZE) {
+                roll();
+                segment = segments.get(segments.size() - 1);
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + message.length);
+            record.putLong(nextRecord).putLong(timestamp).putInt(message.length).put(message).flip();
+            while (record.hasRemaining())
+                active.write(record, segment.size + record.position());
+
+            if ((nextRecord - segment.firstRecord) % INDEX_INTERVAL == 0) {
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+                entry.putLong(nextRecord).putLong(timestamp).putLong(segment.size).flip();
+                while (entry.hasRemaining())
+                    activeIndex.write(entry);
+                segment.index.add(new long[] { nextRecord, timestamp, segment.size });
+            }
+
+            segment.size += RECORD_HEADER + message.length;
+            nextRecord++;
+        }
+
+        /**
+         * Forces appended records to disk. The index of the active segment is rebuilt on
+         * open, so it does not need to be.
+         */
+        synchronized void sync() throws IOException {
+            active.force(false);
+        }
+
+        private void roll() throws IOException {
+            if (active != null) {
+                active.force(false);
+                activeIndex.force(false);
+                active.close();
+                activeIndex.close();
+            }
+
+            File file = new File(String.format("%s.%020d.seg", baseName, nextRecord));
+            Segment segment = new Segment(file, nextRecord);
+            active = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            activeIndex = FileChannel.open(segment.indexFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            segments.add(segment);
+        }
+
+        /**
+         * @return the last count messages, oldest first
+         */
+        List<Entry> tail(int count) throws IOException {
+            List<Segment> view;
+            long from;
+            synchronized (this) {
+                view = view();
+                from = Math.max(view.get(0).firstRecord, nextRecord - count);
+            }
+
+            int first = 0;
+            while (first + 1 < view.size() && view.get(first + 1).firstRecord <= from)
+                first++;
+
+            List<Entry> entries = new ArrayList<>();
+            scan(view, first, view.get(first).floorRecord(from), Long.MAX_VALUE, entry -> {
+                if (entry.record >= from)
+                    entries.add(entry);
+                return true;
+            });
+            return entries;
+        }
+
+        /**
+         * @return messages received between from and to inclusive, oldest first
+         */
+        List<Entry> range(long from, long to) throws IOException {
+            List<Segment> view;
+            synchronized (this) {
+                view = view();
+            }
+
+            // Last segment starting at or before from, found by binary search
+            int low = 0;
+            int high = view.size() - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (view.get(mid).firstTimestamp() <= from)
+                    low = mid;
+                else
+                    high = mid - 1;
+            }
+
+            List<Entry> entries = new ArrayList<>();
+            scan(view, low, view.get(low).floorTime(from), to, entry -> {
+                if (entry.timestamp >= from)
+                    entries.add(entry);
+                return true;
+            });
+            return entries;
+        }
+
+        /**
+         * Writes the whole log in the text format the participant used to log in.
+         *
+         * @return number of messages written
+         */
+        int export(String fileName) throws IOException {
+            List<Segment> view;
+            synchronized (this) {
+                view = view();
+            }
+
+            int[] count = new int[1];
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(fileName), StandardCharsets.UTF_8))) {
+                IOException[] failure = new IOException[1];
+                scan(view, 0, 0, Long.MAX_VALUE, entry -> {
+                    try {
+                        writer.write(entry + "\n");
+                        count[0]++;
+                        return true;
+                    } catch (IOException e) {
+                        failure[0] = e;
+                        return false;
+                    }
+                });
+                if (failure[0] != null)
+                    throw failure[0];
+            }
+            return count[0];
+        }
+
+        /**
+         * Copies the segment list with the sizes as of now, so readers can scan the mapped
+         * files without holding the lock while appends continue. Caller must hold the lock.
+         */
+        private List<Segment> view() {
+            List<Segment> view = new ArrayList<>(segments.size());
+            for (Segment segment : segments)
+                view.add(segment.copy());
+            return view;
+        }
+
+        /**
+         * Visits records from the given offset of the given segment onwards, until one is
+         * received after the to time or the visitor returns false.
+         */
+        private void scan(List<Segment> view, int first, long offset, long to,
+                          java.util.function.Predicate<Entry> visitor) throws IOException {
+            for (int i = first; i < view.size(); i++) {
+                Segment segment = view.get(i);
+                MappedByteBuffer buffer = segment.map();
+                buffer.position((int) (i == first ? offset : 0));
+
+                while (buffer.remaining() >= RECORD_HEADER) {
+                    long record = buffer.getLong();
+                    long timestamp = buffer.getLong();
+                    byte[] message = new byte[buffer.getInt()];
+                    buffer.get(message);
+
+                    if (timestamp > to)
+                        return;
+                    if (!visitor.test(new Entry(record, timestamp, message)))
+                        return;
+                }
+            }
+        }
+
+        private class Segment {
+
+            private File file;
+            private File indexFile;
+            private long firstRecord;
+            private long size;
+
+            // Sparse index entries of record number, timestamp and file offset
+            private List<long[]> index = new ArrayList<>();
+
+            Segment(File file, long firstRecord) {
+                this.file = file;
+                this.indexFile = new File(file.getPath() + ".idx");
+                this.firstRecord = firstRecord;
+            }
+
+            Segment copy() {
+                Segment copy = new Segment(file, firstRecord);
+                copy.size = size;
+                copy.index = new ArrayList<>(index);
+                return copy;
+            }
+
+            void loadIndex() throws IOException {
+                size = file.length();
+                if (!indexFile.exists()) {
+                    recover();
+                    return;
+                }
+
+                try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    while (buffer.remaining() >= INDEX_ENTRY)
+                        index.add(new long[] { buffer.getLong(), buffer.getLong(), buffer.getLong() });
+                }
+            }
+
+            /**
+             * Rebuilds the index by scanning the segment and drops a torn final record.
+             *
+             * @return the number of the record after the last one in the segment
+             */
+            long recover() throws IOException {
+                long record = firstRecord;
+                int valid = 0;
+                index.clear();
+
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    while (buffer.remaining() >= RECORD_HEADER) {
+                        long number = buffer.getLong();
+                        long timestamp = buffer.getLong();
+                        int length = buffer.getInt();
+                        if (number != record || length < 0 || length > buffer.remaining())
+                            break;
+                        if ((record - firstRecord) % INDEX_INTERVAL == 0)
+                            index.add(new long[] { record, timestamp, valid });
+                        buffer.position(buffer.position() + length);
+                        valid = buffer.position();
+                        record++;
+                    }
+
+                    if (valid < channel.size())
+                        channel.truncate(valid);
+                }
+                size = valid;
+
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(indexFile)))) {
+                    for (long[] entry : index) {
+                        out.writeLong(entry[0]);
+                        out.writeLong(entry[1]);
+                        out.writeLong(entry[2]);
+                    }
+                }
+                return record;
+            }
+
+            MappedByteBuffer map() throws IOException {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+            }
+
+            long firstTimestamp() {
+                return index.isEmpty() ? Long.MAX_VALUE : index.get(0)[1];
+            }
+
+            /**
+             * @return offset of the last indexed record at or before the given record number
+             */
+            long floorRecord(long record) {
+                return floor(0, record);
+            }
+
+            /**
+             * @return offset of the last indexed record received at or before the given time
+             */
+            long floorTime(long timestamp) {
+                return floor(1, timestamp);
+            }
+
+            private long floor(int field, long key) {
+                int low = 0;
+                int high = index.size() - 1;
+                long offset = 0;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    if (index.get(mid)[field] <= key) {
+                        offset = index.get(mid)[2];
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                return offset;
+            }
+        }
+
+        private class Entry {
+
+            private long record;
+            private long timestamp;
+            private byte[] message;
+
+            Entry(long record, long timestamp, byte[] message) {
+                this.record = record;
+                this.timestamp = timestamp;
+                this.message = message;
+            }
+
+            @Override
+            public String toString() {
+                return new Date(timestamp).toString() + " : " + new String(message, StandardCharsets.UTF_8);
+            }
+        }
     }
 }